@@ -0,0 +1,79 @@
+package com.klatunetworks.webhooks.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.klatunetworks.webhooks.core.RequestCompression;
+
+import okio.ByteString;
+
+/**
+ * Per-attempt compression cost: a new GZIPOutputStream over the payload String, against RequestCompression with pooled deflaters, and
+ * against a repeated payload as in a fan-out, which is compressed once.
+ *
+ * @author Dan Simpson
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+
+	@Param({ "4096", "65536" })
+	public int payloadSize;
+
+	private String json;
+	private ByteString[] payloads;
+	private int next = 0;
+	private RequestCompression compression;
+
+	@Setup
+	public void setUp() {
+		StringBuilder builder = new StringBuilder("[");
+		for (int i = 0; builder.length() < payloadSize - 64; i++) {
+			builder.append(i > 0 ? "," : "").append("{\"id\":").append(i).append(",\"event\":\"benchmark\",\"value\":").append(i * 31 % 977)
+					.append('}');
+		}
+		json = builder.append(']').toString();
+		// Distinct instances, so each compression misses the fan-out cache
+		payloads = new ByteString[] { ByteString.encodeUtf8(json), ByteString.encodeUtf8(json) };
+		compression = RequestCompression.gzip();
+	}
+
+	@Benchmark
+	public byte[] naive() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+			gzip.write(json.getBytes(StandardCharsets.UTF_8));
+		}
+		return bytes.toByteArray();
+	}
+
+	@Benchmark
+	public ByteString pooled() {
+		return compression.compress(payloads[next++ & 1]);
+	}
+
+	@Benchmark
+	public ByteString fanOut() {
+		return compression.compress(payloads[0]);
+	}
+}
@@ -0,0 +1,103 @@
+package com.klatunetworks.webhooks.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.klatunetworks.webhooks.core.BlockingWebhookService;
+import com.klatunetworks.webhooks.core.Webhook;
+import com.klatunetworks.webhooks.core.WebhookService;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+/**
+ * Time to deliver a wave of webhooks to a high latency receiver, through the OkHttp dispatcher and through blocking deliveries on a virtual
+ * thread per task (a cached platform thread pool before Java 21). Both are allowed the same concurrency, so the difference is the cost of
+ * a thread per in-flight request; run with -prof gc or watch RSS to compare footprints.
+ * 
+ * @author Dan Simpson
+ *
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DispatcherBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class Server {
+
+		@Param({ "100" })
+		public int responseDelayMillis;
+
+		@Param({ "100", "1000" })
+		public int concurrency;
+
+		public MockWebServer server;
+		public String url;
+		public WebhookService dispatcher;
+		public BlockingWebhookService blocking;
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException {
+			server = new MockWebServer();
+			server.setDispatcher(new Dispatcher() {
+				@Override
+				public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+					Thread.sleep(responseDelayMillis);
+					return new MockResponse().setResponseCode(200);
+				}
+			});
+			server.start();
+			url = server.getUrl("/hooks").toString();
+
+			OkHttpClient client = new OkHttpClient();
+			client.getDispatcher().setMaxRequests(concurrency);
+			client.getDispatcher().setMaxRequestsPerHost(concurrency);
+			dispatcher = new WebhookService(client);
+			blocking = new BlockingWebhookService(new OkHttpClient(), concurrency);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException {
+			blocking.close();
+			server.shutdown();
+		}
+	}
+
+	@Benchmark
+	public void dispatcher(Server server) throws InterruptedException {
+		wave(server, server.dispatcher);
+	}
+
+	@Benchmark
+	public void blocking(Server server) throws InterruptedException {
+		wave(server, server.blocking);
+	}
+
+	private static void wave(Server server, WebhookService service) throws InterruptedException {
+		CountDownLatch latch = new CountDownLatch(server.concurrency);
+		for (int i = 0; i < server.concurrency; i++) {
+			service.submit(new Webhook(server.url, "{}"), result -> latch.countDown());
+		}
+		latch.await();
+	}
+}
@@ -0,0 +1,117 @@
+package com.klatunetworks.webhooks.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.klatunetworks.webhooks.core.Webhook;
+import com.klatunetworks.webhooks.core.store.WebhookFileStore;
+import com.klatunetworks.webhooks.core.store.WebhookStore;
+
+/**
+ * Write-ahead log throughput and recovery. Recovery of a 1 GB log needs a heap large enough for its webhooks:
+ * 
+ * <pre>
+ * java -jar benchmarks.jar FileStoreBenchmark.recover -p logMegabytes=1024 -jvmArgsAppend -Xmx8g
+ * </pre>
+ * 
+ * @author Dan Simpson
+ *
+ */
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class FileStoreBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class Appending {
+
+		public Path directory;
+		public WebhookFileStore store;
+		public Webhook webhook = Payloads.webhook(0);
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException {
+			directory = Files.createTempDirectory("webhooks-wal");
+			store = new WebhookFileStore(directory, WebhookStore.newConstantBackoffFn(1, TimeUnit.HOURS));
+		}
+
+		@Setup(Level.Iteration)
+		public void sync() {
+			// fsync and compact between iterations, as the store tick would
+			store.run();
+			store.getQueue().clear();
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException {
+			store.close();
+			Logs.delete(directory);
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Recovering {
+
+		@Param({ "64" })
+		public int logMegabytes;
+
+		public Path directory;
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException {
+			directory = Files.createTempDirectory("webhooks-wal");
+			WebhookFileStore store = new WebhookFileStore(directory, WebhookStore.newConstantBackoffFn(1, TimeUnit.HOURS));
+			// every segment before the active one is full
+			long target = logMegabytes * 1024l * 1024l;
+			for (int i = 0; (store.getSegmentCount() - 1l) * WebhookFileStore.DEFAULT_SEGMENT_SIZE < target; i++) {
+				store.add(Payloads.webhook(i));
+			}
+			store.close();
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException {
+			Logs.delete(directory);
+		}
+	}
+
+	/**
+	 * Append an add record and its ack, which keeps the live set empty
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@Warmup(iterations = 3, time = 1)
+	@Measurement(iterations = 5, time = 1)
+	public void append(Appending state) {
+		Webhook webhook = new Webhook(state.webhook.getUrl(), state.webhook.getPayload(), state.webhook.getHeaders());
+		state.store.add(webhook);
+		state.store.update(Payloads.success(webhook));
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 1)
+	@Measurement(iterations = 3)
+	public int recover(Recovering state) throws IOException {
+		WebhookFileStore store = new WebhookFileStore(state.directory, WebhookStore.newConstantBackoffFn(1, TimeUnit.HOURS));
+		int recovered = store.getDelayedWebhooks();
+		store.close();
+		return recovered;
+	}
+}
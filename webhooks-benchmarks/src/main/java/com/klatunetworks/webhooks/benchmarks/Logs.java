@@ -0,0 +1,25 @@
+package com.klatunetworks.webhooks.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+/**
+ * File helpers for log benchmarks
+ * 
+ * @author Dan Simpson
+ *
+ */
+final class Logs {
+
+	private Logs() {
+	}
+
+	public static void delete(Path directory) throws IOException {
+		try (Stream<Path> files = Files.list(directory)) {
+			files.forEach(path -> path.toFile().delete());
+		}
+		Files.deleteIfExists(directory);
+	}
+}
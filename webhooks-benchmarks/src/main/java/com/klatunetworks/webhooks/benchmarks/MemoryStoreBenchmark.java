@@ -0,0 +1,122 @@
+package com.klatunetworks.webhooks.benchmarks;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.klatunetworks.webhooks.core.Webhook;
+import com.klatunetworks.webhooks.core.WebhookResult;
+import com.klatunetworks.webhooks.core.store.OverflowPolicy;
+import com.klatunetworks.webhooks.core.store.WebhookMemoryStore;
+import com.klatunetworks.webhooks.core.store.WebhookOutbox;
+import com.klatunetworks.webhooks.core.store.WebhookStore;
+
+/**
+ * Store hot paths: the scheduler tick with many parked retries, and the add, run, update cycle of a delivery, single threaded and
+ * contended.
+ * 
+ * @author Dan Simpson
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class MemoryStoreBenchmark {
+
+	/**
+	 * A store with parked retries, none of them due
+	 */
+	@State(Scope.Benchmark)
+	public static class Parked {
+
+		@Param({ "10000", "100000", "1000000" })
+		public int parked;
+
+		public WebhookMemoryStore store;
+
+		/**
+		 * The same retries in a map, as scanned by the store before it kept a schedule
+		 */
+		public Map<Webhook, long[]> scanned = new ConcurrentHashMap<Webhook, long[]>();
+
+		@Setup
+		public void setUp() {
+			store = new WebhookMemoryStore(WebhookStore.newConstantBackoffFn(1, TimeUnit.HOURS), new WebhookOutbox(parked,
+					OverflowPolicy.REJECT));
+			for (int i = 0; i < parked; i++) {
+				store.add(Payloads.webhook(i));
+			}
+			store.run();
+
+			Webhook webhook;
+			while ((webhook = store.getQueue().poll()) != null) {
+				WebhookResult result = new WebhookResult(webhook);
+				result.setError(new IOException("parked"));
+				store.update(result);
+				scanned.put(webhook, new long[] { System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1) });
+			}
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Cycle {
+
+		public WebhookMemoryStore store = new WebhookMemoryStore(WebhookStore.newConstantBackoffFn(1, TimeUnit.HOURS));
+		public Webhook webhook = Payloads.webhook(0);
+	}
+
+	@Benchmark
+	public void tick(Parked state) {
+		state.store.run();
+	}
+
+	@Benchmark
+	public void scanTick(Parked state, Blackhole hole) {
+		long threshold = System.currentTimeMillis();
+		state.scanned.forEach((webhook, next) -> {
+			if (next[0] < threshold) {
+				hole.consume(webhook);
+			}
+		});
+	}
+
+	@Benchmark
+	@Threads(1)
+	public Webhook cycle(Cycle state) {
+		return deliver(state.store, new Webhook(state.webhook.getUrl(), state.webhook.getPayload()));
+	}
+
+	@Benchmark
+	@Threads(4)
+	public Webhook cycleContended(Cycle state) {
+		return deliver(state.store, new Webhook(state.webhook.getUrl(), state.webhook.getPayload()));
+	}
+
+	private static Webhook deliver(WebhookStore store, Webhook webhook) {
+		store.add(webhook);
+		((Runnable) store).run();
+		Webhook taken = store.getQueue().poll();
+		if (taken != null) {
+			store.dispatched(taken);
+			store.update(Payloads.success(taken));
+		}
+		return taken;
+	}
+}
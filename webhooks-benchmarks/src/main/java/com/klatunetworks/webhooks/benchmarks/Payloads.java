@@ -0,0 +1,34 @@
+package com.klatunetworks.webhooks.benchmarks;
+
+import com.klatunetworks.webhooks.core.Webhook;
+import com.klatunetworks.webhooks.core.WebhookResult;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+/**
+ * Shared fixtures for the benchmarks
+ * 
+ * @author Dan Simpson
+ *
+ */
+final class Payloads {
+
+	private static final Response OK = new Response.Builder().request(new Request.Builder().url("http://localhost/").build())
+			.protocol(Protocol.HTTP_1_1).code(200).build();
+
+	private Payloads() {
+	}
+
+	public static Webhook webhook(int n) {
+		Webhook webhook = new Webhook("http://localhost/hooks/" + (n % 1000), "{\"id\":" + n + ",\"event\":\"benchmark\"}");
+		webhook.setHeader("Authorization", "Bearer benchmark");
+		return webhook;
+	}
+
+	public static WebhookResult success(Webhook webhook) {
+		WebhookResult result = new WebhookResult(webhook);
+		result.setResponse(OK);
+		return result;
+	}
+}
@@ -0,0 +1,72 @@
+package com.klatunetworks.webhooks.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.klatunetworks.webhooks.core.Webhook;
+import com.klatunetworks.webhooks.core.WebhookSigner;
+
+/**
+ * Per-delivery signing cost: a fresh Mac over the payload decoded to a String and encoded again, as done outside the library, against a
+ * WebhookSigner with a cached Mac per thread signing the encoded payload directly.
+ *
+ * @author Dan Simpson
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SigningBenchmark {
+
+	private static final byte[] SECRET = "benchmark-secret-0123456789abcdef".getBytes(StandardCharsets.UTF_8);
+
+	@Param({ "256", "16384" })
+	public int payloadSize;
+
+	private Webhook webhook;
+	private WebhookSigner signer;
+
+	@Setup
+	public void setUp() {
+		StringBuilder builder = new StringBuilder("{\"data\":\"");
+		while (builder.length() < payloadSize - 2) {
+			builder.append('x');
+		}
+		webhook = new Webhook("http://localhost:8080/webhooks", builder.append("\"}").toString());
+		signer = new WebhookSigner(SECRET);
+	}
+
+	@Benchmark
+	public String naive() throws GeneralSecurityException {
+		long timestamp = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+		Mac mac = Mac.getInstance(WebhookSigner.DEFAULT_ALGORITHM);
+		mac.init(new SecretKeySpec(SECRET, WebhookSigner.DEFAULT_ALGORITHM));
+		String content = webhook.getId() + "." + timestamp + "." + webhook.getJson();
+		return "v1," + Base64.getEncoder().encodeToString(mac.doFinal(content.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	@Benchmark
+	public String cached() {
+		return signer.signature(webhook, TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()));
+	}
+}
@@ -0,0 +1,52 @@
+package com.klatunetworks.webhooks.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import com.klatunetworks.webhooks.core.store.BackoffStrategy;
+import com.klatunetworks.webhooks.core.store.WebhookCompactStore;
+import com.klatunetworks.webhooks.core.store.WebhookMemoryStore;
+import com.klatunetworks.webhooks.core.store.WebhookStore;
+
+/**
+ * Heap retained per parked webhook by the memory and compact stores. Not a JMH benchmark, since the result is a size rather than a time:
+ * each store is filled with webhooks and the growth of the live heap after a full GC is divided by their number.
+ * 
+ * <pre>
+ * java -Xmx2g -cp webhooks-benchmarks/target/benchmarks.jar com.klatunetworks.webhooks.benchmarks.StoreFootprint 1000000
+ * </pre>
+ * 
+ * @author Dan Simpson
+ *
+ */
+public class StoreFootprint {
+
+	private static final BackoffStrategy BACKOFF = WebhookStore.newConstantBackoffFn(1, TimeUnit.HOURS);
+
+	public static void main(String[] args) throws InterruptedException {
+		int parked = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		measure("WebhookMemoryStore", parked, () -> new WebhookMemoryStore(BACKOFF));
+		measure("WebhookCompactStore", parked, () -> new WebhookCompactStore(BACKOFF));
+	}
+
+	private static void measure(String name, int parked, Supplier<WebhookStore> factory) throws InterruptedException {
+		long before = used();
+		WebhookStore store = factory.get();
+		for (int i = 0; i < parked; i++) {
+			store.add(Payloads.webhook(i));
+		}
+		long after = used();
+		// Reading the store after the measurement keeps it reachable
+		System.out.printf("%-20s %,d parked webhooks, %,d bytes each, %d queued%n", name, parked, (after - before) / parked,
+				store.getQueue().size());
+	}
+
+	private static long used() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 4; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,150 @@
+package com.klatunetworks.webhooks.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.klatunetworks.webhooks.core.Webhook;
+import com.klatunetworks.webhooks.core.WebhookService;
+import com.klatunetworks.webhooks.core.WebhookServiceContract;
+import com.klatunetworks.webhooks.core.store.WebhookMemoryStore;
+import com.klatunetworks.webhooks.core.store.WebhookStore;
+import com.klatunetworks.webhooks.core.store.WebhookStoreService;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+/**
+ * End to end throughput from submit to result callback against a local MockWebServer, through the bare service and through the store
+ * service. A store service limited to one in-flight webhook approximates dispatching one webhook at a time.
+ * 
+ * @author Dan Simpson
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SubmitBenchmark {
+
+	private static final int BATCH = 200;
+
+	@State(Scope.Benchmark)
+	public static class Server {
+
+		@Param({ "0" })
+		public int responseDelayMillis;
+
+		public MockWebServer server;
+		public OkHttpClient client;
+		public String url;
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException {
+			server = new MockWebServer();
+			server.setDispatcher(new Dispatcher() {
+				@Override
+				public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+					if (responseDelayMillis > 0) {
+						Thread.sleep(responseDelayMillis);
+					}
+					return new MockResponse().setResponseCode(200);
+				}
+			});
+			server.start();
+			url = server.getUrl("/hooks").toString();
+
+			client = new OkHttpClient();
+			client.getDispatcher().setMaxRequests(256);
+			client.getDispatcher().setMaxRequestsPerHost(256);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException {
+			server.shutdown();
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Stored {
+
+		@Param({ "1", "64" })
+		public int maxInFlight;
+
+		public WebhookMemoryStore store;
+		public WebhookStoreService service;
+		public volatile CountDownLatch latch;
+
+		private final ScheduledExecutorService executor = Executors.newScheduledThreadPool(2);
+
+		@Setup(Level.Trial)
+		public void setUp(Server server) {
+			WebhookService http = new WebhookService(server.client);
+			WebhookServiceContract counting = (webhook, callback) -> http.submit(webhook, result -> {
+				callback.accept(result);
+				latch.countDown();
+			});
+			store = new WebhookMemoryStore(WebhookStore.newConstantBackoffFn(1, TimeUnit.SECONDS));
+			service = new WebhookStoreService(counting, store, maxInFlight, maxInFlight, null);
+			executor.scheduleAtFixedRate(store, 0, 1, TimeUnit.MILLISECONDS);
+			executor.submit(service);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws InterruptedException {
+			service.shutdown(5, TimeUnit.SECONDS);
+			executor.shutdownNow();
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Direct {
+
+		public WebhookService service;
+
+		@Setup(Level.Trial)
+		public void setUp(Server server) {
+			service = new WebhookService(server.client);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public void submit(Server server, Direct direct) throws InterruptedException {
+		CountDownLatch latch = new CountDownLatch(BATCH);
+		for (int i = 0; i < BATCH; i++) {
+			direct.service.submit(new Webhook(server.url, "{}"), result -> latch.countDown());
+		}
+		latch.await();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public void submitThroughStore(Server server, Stored stored) throws InterruptedException {
+		stored.latch = new CountDownLatch(BATCH);
+		for (int i = 0; i < BATCH; i++) {
+			stored.service.submit(new Webhook(server.url, "{}"));
+		}
+		stored.latch.await();
+	}
+}
@@ -0,0 +1,107 @@
+package com.klatunetworks.webhooks.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.klatunetworks.webhooks.core.Webhook;
+import com.klatunetworks.webhooks.core.WebhookHeaders;
+import com.squareup.okhttp.Request;
+
+/**
+ * Cost of creating a webhook and building its request for an attempt, with headers of its own or from a shared set. Requests are built
+ * through a subclass, the way an extension of Webhook reaches toBuilder(), so the benchmark needs no access to the core package.
+ * 
+ * @author Dan Simpson
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WebhookBenchmark {
+
+	private static final String URL = "http://localhost:8080/webhooks";
+
+	@Param({ "0", "4" })
+	public int headers;
+
+	@Param({ "256", "16384" })
+	public int payloadSize;
+
+	private String json;
+	private Attempt webhook;
+	private WebhookHeaders shared;
+	private Attempt sharing;
+
+	/**
+	 * A webhook which builds the request of an attempt as WebhookService does, before compression
+	 */
+	private static final class Attempt extends Webhook {
+
+		Attempt(String url, String json) {
+			super(url, json);
+		}
+
+		Attempt(String url, String json, WebhookHeaders headers) {
+			super(url, json, headers);
+		}
+
+		Request request() {
+			return toBuilder().build();
+		}
+	}
+
+	@Setup
+	public void setUp() {
+		StringBuilder builder = new StringBuilder("{\"data\":\"");
+		while (builder.length() < payloadSize - 2) {
+			builder.append('x');
+		}
+		json = builder.append("\"}").toString();
+		webhook = (Attempt) create();
+		String[] namesAndValues = new String[headers * 2];
+		for (int i = 0; i < headers; i++) {
+			namesAndValues[i * 2] = "X-Header-" + i;
+			namesAndValues[i * 2 + 1] = "value";
+		}
+		shared = WebhookHeaders.of(namesAndValues);
+		sharing = (Attempt) createShared();
+	}
+
+	@Benchmark
+	public Webhook create() {
+		Attempt created = new Attempt(URL, json);
+		for (int i = 0; i < headers; i++) {
+			created.setHeader("X-Header-" + i, "value");
+		}
+		return created;
+	}
+
+	@Benchmark
+	public Webhook createShared() {
+		return new Attempt(URL, json, shared);
+	}
+
+	@Benchmark
+	public Request buildRequest() {
+		return webhook.request();
+	}
+
+	@Benchmark
+	public Request buildSharedRequest() {
+		return sharing.request();
+	}
+}
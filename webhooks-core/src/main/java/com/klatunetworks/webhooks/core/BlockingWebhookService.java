@@ -0,0 +1,161 @@
+package com.klatunetworks.webhooks.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import com.codahale.metrics.MetricRegistry;
+import com.squareup.okhttp.Call;
+import com.squareup.okhttp.Callback;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+/**
+ * A WebhookService which runs each delivery as blocking I/O on its own task of an executor, instead of the OkHttp dispatcher. A semaphore
+ * admits at most maxConcurrent deliveries; submit blocks while the limit is reached.
+ * 
+ * By default the executor starts a virtual thread per task when the runtime has them (Java 21+), so tens of thousands of slow receivers
+ * cost a small heap allocation each rather than a platform thread. On older runtimes it falls back to a cached pool of platform threads,
+ * still bounded by maxConcurrent.
+ * 
+ * @author Dan Simpson
+ *
+ */
+public class BlockingWebhookService extends WebhookService implements Closeable {
+
+	public static final int DEFAULT_MAX_CONCURRENT = 10000;
+
+	private final ExecutorService executor;
+	private final Semaphore admission;
+	private final int maxConcurrent;
+	private final boolean owned;
+
+	/**
+	 * Build a blocking service on a virtual thread per task executor, when available
+	 * 
+	 * @param client
+	 * @param maxConcurrent
+	 *          the maximum number of deliveries in flight
+	 */
+	public BlockingWebhookService(OkHttpClient client, int maxConcurrent) {
+		this(client, null, DEFAULT_BODY_POLICY, newVirtualThreadExecutor(), maxConcurrent, true);
+	}
+
+	/**
+	 * @param client
+	 * @param metrics
+	 *          optional metrics registry
+	 * @param bodyPolicy
+	 *          how response bodies are read
+	 * @param executor
+	 *          runs each delivery, it is not shut down by the service
+	 * @param maxConcurrent
+	 *          the maximum number of deliveries in flight
+	 */
+	public BlockingWebhookService(OkHttpClient client, MetricRegistry metrics, ResponseBodyPolicy bodyPolicy, ExecutorService executor,
+			int maxConcurrent) {
+		this(client, metrics, bodyPolicy, executor, maxConcurrent, false);
+	}
+
+	private BlockingWebhookService(OkHttpClient client, MetricRegistry metrics, ResponseBodyPolicy bodyPolicy, ExecutorService executor,
+			int maxConcurrent, boolean owned) {
+		super(client, metrics, bodyPolicy);
+		this.executor = executor;
+		this.admission = new Semaphore(maxConcurrent);
+		this.maxConcurrent = maxConcurrent;
+		this.owned = owned;
+	}
+
+	@Override
+	protected Call dispatch(Request request, Callback callback) {
+		Call call = getClient().newCall(request);
+		try {
+			admission.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			callback.onFailure(request, new IOException("Interrupted awaiting admission", e));
+			return call;
+		}
+		try {
+			executor.execute(() -> {
+				try {
+					execute(call, request, callback);
+				} finally {
+					admission.release();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			admission.release();
+			callback.onFailure(request, new IOException("Delivery rejected", e));
+		}
+		return call;
+	}
+
+	private void execute(Call call, Request request, Callback callback) {
+		Response response;
+		try {
+			response = call.execute();
+		} catch (IOException e) {
+			callback.onFailure(request, e);
+			return;
+		} catch (RuntimeException e) {
+			// Such as an interceptor failing, which would otherwise end the task without a result
+			callback.onFailure(request, new IOException("Delivery failed", e));
+			return;
+		}
+		try {
+			callback.onResponse(response);
+		} catch (IOException e) {
+			// The forwarding callback reports its own failures
+		} catch (RuntimeException e) {
+			closeQuietly(response);
+			callback.onFailure(request, new IOException("Failed to handle response", e));
+		}
+	}
+
+	private static void closeQuietly(Response response) {
+		try {
+			response.body().close();
+		} catch (IOException | RuntimeException e) {
+			// Already failed
+		}
+	}
+
+	/**
+	 * @return the number of deliveries in flight
+	 */
+	public int getInFlight() {
+		return maxConcurrent - admission.availablePermits();
+	}
+
+	/**
+	 * Shut down the executor if the service created it
+	 */
+	@Override
+	public void close() {
+		if (owned) {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * @return an executor starting a virtual thread per task on Java 21+, or a cached thread pool of daemon threads otherwise
+	 */
+	public static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool((runnable) -> {
+				Thread thread = new Thread(runnable, "webhook-delivery");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+}
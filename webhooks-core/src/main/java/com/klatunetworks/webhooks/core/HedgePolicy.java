@@ -0,0 +1,86 @@
+package com.klatunetworks.webhooks.core;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * When to send a second, hedged attempt of a webhook to a slow receiver: after the given percentile of the recent latencies of the
+ * receiver, within a floor and ceiling. Whichever attempt gets a response first wins and the other is canceled, so a hedge turns a
+ * connection which hangs until the read timeout into one extra request. Only use it for receivers which treat duplicate deliveries as one,
+ * such as by the Webhook-Id header, and keep one policy per receiver so each learns its own latencies.
+ *
+ * @author Dan Simpson
+ *
+ */
+public class HedgePolicy {
+
+	private static final int SAMPLES = 256;
+	private static final int RECOMPUTE_EVERY = 32;
+
+	private final double percentile;
+	private final long minDelay;
+	private final long maxDelay;
+	private final long[] samples = new long[SAMPLES];
+	private final AtomicLong recorded = new AtomicLong();
+	private volatile long delay;
+
+	/**
+	 * Hedge after the 95th percentile, between 10ms and 5 seconds
+	 */
+	public HedgePolicy() {
+		this(0.95, 10, 5000, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param percentile
+	 *          of recent latencies after which to hedge, e.g. 0.95
+	 * @param minDelay
+	 *          the shortest delay before hedging
+	 * @param maxDelay
+	 *          the longest delay before hedging, also used until enough latencies are known
+	 * @param unit
+	 */
+	public HedgePolicy(double percentile, long minDelay, long maxDelay, TimeUnit unit) {
+		if (percentile <= 0 || percentile >= 1 || minDelay < 0 || maxDelay < minDelay) {
+			throw new IllegalArgumentException("Percentile must be within (0, 1) and delays must satisfy 0 <= min <= max");
+		}
+		this.percentile = percentile;
+		this.minDelay = unit.toMillis(minDelay);
+		this.maxDelay = unit.toMillis(maxDelay);
+		this.delay = this.maxDelay;
+	}
+
+	/**
+	 * @return milliseconds to wait for a response before hedging
+	 */
+	public long getDelay() {
+		return delay;
+	}
+
+	/**
+	 * Record the latency of a delivery which got a response or ran out of time
+	 *
+	 * @param latency
+	 *          milliseconds from the start of the first attempt to the first response, or to the deadline
+	 */
+	public void record(long latency) {
+		long n = recorded.getAndIncrement();
+		synchronized (samples) {
+			samples[(int) (n % SAMPLES)] = latency;
+		}
+		if ((n + 1) % RECOMPUTE_EVERY == 0) {
+			recompute((int) Math.min(n + 1, SAMPLES));
+		}
+	}
+
+	private void recompute(int count) {
+		long[] sorted;
+		synchronized (samples) {
+			sorted = Arrays.copyOf(samples, count);
+		}
+		Arrays.sort(sorted);
+		long value = sorted[Math.min(count - 1, (int) (percentile * count))];
+		delay = Math.max(minDelay, Math.min(maxDelay, value));
+	}
+}
@@ -0,0 +1,304 @@
+package com.klatunetworks.webhooks.core;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * Per destination host metrics with bounded cardinality. A space-saving sketch estimates the heaviest hosts; only the top hosts get their
+ * own metrics and every other host is grouped under webhook.endpoints.other, apart from the names of hosts, so the registry holds at most
+ * maxTracked + 1 sets of host metrics however many distinct hosts are seen.
+ *
+ * Entries are kept in min-heaps by count, one of all entries and one of the hosts with metrics, so replacing or demoting the lightest host
+ * costs a logarithmic number of steps rather than a scan of the sketch.
+ *
+ * Completions on other threads do not wait for the sketch. While it is busy an offer is not counted and only looks up the metrics of the
+ * host, which leaves the estimate of a heavy host short by a few offers but keeps the lock off the completion path.
+ * 
+ * @author Dan Simpson
+ *
+ */
+final class HostSketch {
+
+	public static final String PREFIX = "webhook.endpoint";
+	public static final String OTHER = "webhook.endpoints.other";
+
+	/**
+	 * Minimum guaranteed count before a host is given its own metrics
+	 */
+	private static final long PROMOTE_THRESHOLD = 16;
+
+	/**
+	 * Offers between halving every count, so hosts which go quiet make room for new heavy hosts
+	 */
+	private static final int DECAY_INTERVAL = 1 << 20;
+
+	/**
+	 * Latency timer and status class meters of a host
+	 */
+	static final class HostMetrics {
+
+		private final List<String> names;
+		private final Timer latency;
+		private final Meter success;
+		private final Meter redirect;
+		private final Meter clientError;
+		private final Meter serverError;
+		private final Meter error;
+
+		HostMetrics(MetricRegistry registry, String prefix) {
+			this.names = Arrays.asList(MetricRegistry.name(prefix, "latency"), MetricRegistry.name(prefix, "2xx"),
+					MetricRegistry.name(prefix, "3xx"), MetricRegistry.name(prefix, "4xx"), MetricRegistry.name(prefix, "5xx"),
+					MetricRegistry.name(prefix, "error"));
+			this.latency = registry.timer(names.get(0));
+			this.success = registry.meter(names.get(1));
+			this.redirect = registry.meter(names.get(2));
+			this.clientError = registry.meter(names.get(3));
+			this.serverError = registry.meter(names.get(4));
+			this.error = registry.meter(names.get(5));
+		}
+
+		void record(WebhookResult result, long nanos) {
+			latency.update(nanos, TimeUnit.NANOSECONDS);
+			if (!result.hasResponse()) {
+				error.mark();
+				return;
+			}
+			int code = result.getResponse().get().code();
+			if (code >= 500) {
+				serverError.mark();
+			} else if (code >= 400) {
+				clientError.mark();
+			} else if (code >= 300) {
+				redirect.mark();
+			} else {
+				success.mark();
+			}
+		}
+
+		void remove(MetricRegistry registry) {
+			// By name, as a prefix would also match the metrics of hosts under this one, such as example.com.au
+			for (String name : names) {
+				registry.remove(name);
+			}
+		}
+	}
+
+	private static final class Entry {
+
+		final String host;
+		long count;
+		long error;
+		HostMetrics metrics;
+		int[] slots = { -1, -1 };
+
+		Entry(String host, long count) {
+			this.host = host;
+			this.count = count;
+			this.error = count;
+		}
+
+		long guaranteed() {
+			return count - error;
+		}
+	}
+
+	/**
+	 * A min-heap of entries by count, which records each entry's position so an entry can be moved after its count grows
+	 */
+	private static final class Heap {
+
+		private final int id;
+		private Entry[] items;
+		private int size = 0;
+
+		Heap(int id, int capacity) {
+			this.id = id;
+			this.items = new Entry[capacity];
+		}
+
+		Entry peek() {
+			return size == 0 ? null : items[0];
+		}
+
+		void add(Entry entry) {
+			if (size == items.length) {
+				items = Arrays.copyOf(items, size * 2);
+			}
+			place(entry, size++);
+			up(entry.slots[id]);
+		}
+
+		void remove(Entry entry) {
+			int slot = entry.slots[id];
+			entry.slots[id] = -1;
+			Entry last = items[--size];
+			items[size] = null;
+			if (last != entry) {
+				place(last, slot);
+				down(slot);
+				up(last.slots[id]);
+			}
+		}
+
+		/**
+		 * Restore the order after the count of the entry grew
+		 */
+		void increased(Entry entry) {
+			if (entry.slots[id] >= 0) {
+				down(entry.slots[id]);
+			}
+		}
+
+		private void up(int slot) {
+			while (slot > 0) {
+				int parent = (slot - 1) / 2;
+				if (items[parent].count <= items[slot].count) {
+					return;
+				}
+				swap(slot, parent);
+				slot = parent;
+			}
+		}
+
+		private void down(int slot) {
+			while (true) {
+				int child = slot * 2 + 1;
+				if (child >= size) {
+					return;
+				}
+				if (child + 1 < size && items[child + 1].count < items[child].count) {
+					child++;
+				}
+				if (items[slot].count <= items[child].count) {
+					return;
+				}
+				swap(slot, child);
+				slot = child;
+			}
+		}
+
+		private void swap(int a, int b) {
+			Entry entry = items[a];
+			place(items[b], a);
+			place(entry, b);
+		}
+
+		private void place(Entry entry, int slot) {
+			items[slot] = entry;
+			entry.slots[id] = slot;
+		}
+	}
+
+	private final MetricRegistry registry;
+	private final int capacity;
+	private final int maxTracked;
+	private final Map<String, Entry> entries;
+	private final Heap all;
+	private final Heap promoted;
+	private final HostMetrics other;
+	private final Map<String, HostMetrics> tracked = new ConcurrentHashMap<String, HostMetrics>();
+	private final ReentrantLock lock = new ReentrantLock();
+	private int offers = 0;
+
+	/**
+	 * @param registry
+	 * @param maxTracked
+	 *          the maximum number of hosts with their own metrics
+	 */
+	public HostSketch(MetricRegistry registry, int maxTracked) {
+		this.registry = registry;
+		this.maxTracked = maxTracked;
+		this.capacity = Math.max(16, maxTracked * 4);
+		this.entries = new HashMap<String, Entry>(capacity * 2);
+		this.all = new Heap(0, capacity);
+		this.promoted = new Heap(1, maxTracked + 1);
+		this.other = new HostMetrics(registry, OTHER);
+	}
+
+	/**
+	 * Count a request to the host
+	 * 
+	 * @return the metrics to record the request in
+	 */
+	public HostMetrics offer(String host) {
+		if (!lock.tryLock()) {
+			return tracked.getOrDefault(host, other);
+		}
+		try {
+			return count(host);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private HostMetrics count(String host) {
+		if (++offers == DECAY_INTERVAL) {
+			decay();
+		}
+
+		Entry entry = entries.get(host);
+		if (entry == null) {
+			if (entries.size() < capacity) {
+				entry = new Entry(host, 0);
+			} else {
+				// Replace the lightest host, inheriting its count as the error bound
+				Entry min = all.peek();
+				entries.remove(min.host);
+				all.remove(min);
+				demote(min);
+				entry = new Entry(host, min.count);
+			}
+			entries.put(host, entry);
+			all.add(entry);
+		}
+		entry.count++;
+		all.increased(entry);
+		promoted.increased(entry);
+
+		if (entry.metrics == null && entry.guaranteed() >= PROMOTE_THRESHOLD) {
+			if (promoted.size == maxTracked) {
+				// The upper bound of the lightest against the lower bound of the new host, so a host is only demoted for one that is
+				// certainly heavier, and two hosts with overlapping bounds do not swap metrics back and forth
+				Entry lightest = promoted.peek();
+				if (lightest != null && lightest.count < entry.guaranteed()) {
+					demote(lightest);
+				}
+			}
+			if (promoted.size < maxTracked) {
+				entry.metrics = new HostMetrics(registry, MetricRegistry.name(PREFIX, host));
+				promoted.add(entry);
+				tracked.put(host, entry.metrics);
+			}
+		}
+		return entry.metrics == null ? other : entry.metrics;
+	}
+
+	private void demote(Entry entry) {
+		if (entry.metrics != null) {
+			entry.metrics.remove(registry);
+			entry.metrics = null;
+			tracked.remove(entry.host);
+			promoted.remove(entry);
+		}
+	}
+
+	/**
+	 * Halving every count keeps the order of the heaps
+	 */
+	private void decay() {
+		offers = 0;
+		for (Entry entry : entries.values()) {
+			entry.count >>= 1;
+			entry.error >>= 1;
+		}
+	}
+}
@@ -0,0 +1,224 @@
+package com.klatunetworks.webhooks.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import okio.Buffer;
+import okio.ByteString;
+
+/**
+ * Opt-in compression of request bodies for receivers which accept a Content-Encoding. Payloads below the threshold are sent as they are,
+ * and so are payloads which do not shrink.
+ *
+ * Deflaters are pooled and compressed output is written to okio buffers, whose segments are pooled too. The output of the last payload
+ * compressed is remembered, so the copies of a fan-out, which share one payload, are compressed once; the payload itself is only weakly
+ * held. A webhook keeps its compressed body across retries, so each payload is compressed once; where the heap of parked retries matters
+ * more than compression time, {@link #setKeptForRetries(boolean)} drops it after each attempt instead.
+ *
+ * Compression runs on the thread which submits the webhook. Behind a WebhookStoreService that is the single dispatch thread, so at the
+ * default level each compressed megabyte holds up every other dispatch for tens of milliseconds; keep the threshold high or the level low
+ * for large payloads at high rates.
+ *
+ * @author Dan Simpson
+ *
+ */
+public class RequestCompression {
+
+	public static final String GZIP = "gzip";
+	public static final String DEFLATE = "deflate";
+
+	/**
+	 * Smallest payload worth compressing, smaller ones rarely fit fewer packets
+	 */
+	public static final int DEFAULT_THRESHOLD = 1024;
+
+	private static final int POOL_SIZE = 32;
+	private static final int CHUNK = 8192;
+
+	// Fixed gzip member header: magic, deflate, no flags, no mtime, no extra flags, unknown os
+	private static final ByteString GZIP_HEADER = ByteString.of((byte) 0x1f, (byte) 0x8b, (byte) 8, (byte) 0, (byte) 0, (byte) 0,
+			(byte) 0, (byte) 0, (byte) 0, (byte) 0xff);
+
+	private static final ThreadLocal<byte[]> chunks = ThreadLocal.withInitial(() -> new byte[CHUNK]);
+
+	private static final class Compressed extends WeakReference<ByteString> {
+
+		private final ByteString compressed;
+
+		Compressed(ByteString payload, ByteString compressed) {
+			super(payload);
+			this.compressed = compressed;
+		}
+	}
+
+	/**
+	 * Feeds a payload to a deflater and drains it to a buffer, so a ByteString is compressed without copying it first
+	 */
+	private final class Compressing extends OutputStream {
+
+		private final Deflater deflater;
+		private final CRC32 crc = new CRC32();
+		private final Buffer out = new Buffer();
+		private final byte[] chunk = chunks.get();
+
+		Compressing(Deflater deflater) {
+			this.deflater = deflater;
+		}
+
+		@Override
+		public void write(int b) {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			if (gzip) {
+				crc.update(b, off, len);
+			}
+			deflater.setInput(b, off, len);
+			while (!deflater.needsInput()) {
+				drain();
+			}
+		}
+
+		ByteString finish(int size) {
+			deflater.finish();
+			while (!deflater.finished()) {
+				drain();
+			}
+			if (gzip) {
+				out.writeIntLe((int) crc.getValue());
+				out.writeIntLe(size);
+			}
+			return out.readByteString();
+		}
+
+		private void drain() {
+			int count = deflater.deflate(chunk);
+			out.write(chunk, 0, count);
+		}
+	}
+
+	private final String encoding;
+	private final boolean gzip;
+	private final int level;
+	private final int threshold;
+	private final BlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<Deflater>(POOL_SIZE);
+	private final AtomicReference<Compressed> last = new AtomicReference<Compressed>();
+	private volatile boolean keptForRetries = true;
+
+	/**
+	 * @param encoding
+	 *          gzip or deflate
+	 * @param level
+	 *          the deflate level, 1 to 9 or -1 for the default
+	 * @param threshold
+	 *          the smallest payload, in bytes, to compress
+	 */
+	public RequestCompression(String encoding, int level, int threshold) {
+		if (!GZIP.equals(encoding) && !DEFLATE.equals(encoding)) {
+			throw new IllegalArgumentException("Unsupported encoding " + encoding);
+		}
+		if (threshold < 0) {
+			throw new IllegalArgumentException("Threshold must not be negative");
+		}
+		this.encoding = encoding;
+		this.gzip = GZIP.equals(encoding);
+		this.level = level;
+		this.threshold = threshold;
+	}
+
+	/**
+	 * @return gzip at the default level for payloads of at least 1KB
+	 */
+	public static RequestCompression gzip() {
+		return new RequestCompression(GZIP, Deflater.DEFAULT_COMPRESSION, DEFAULT_THRESHOLD);
+	}
+
+	/**
+	 * @return deflate at the default level for payloads of at least 1KB
+	 */
+	public static RequestCompression deflate() {
+		return new RequestCompression(DEFLATE, Deflater.DEFAULT_COMPRESSION, DEFAULT_THRESHOLD);
+	}
+
+	/**
+	 * @param payload
+	 * @return the compressed payload, or null if it is below the threshold or would not shrink
+	 */
+	public ByteString compress(ByteString payload) {
+		if (payload.size() < threshold) {
+			return null;
+		}
+		Compressed previous = last.get();
+		if (previous != null && previous.get() == payload) {
+			return previous.compressed;
+		}
+
+		Deflater deflater = deflaters.poll();
+		if (deflater == null) {
+			// gzip is a raw deflate stream in a gzip member, deflate is the zlib format
+			deflater = new Deflater(level, gzip);
+		}
+		ByteString compressed;
+		try {
+			Compressing compressing = new Compressing(deflater);
+			if (gzip) {
+				compressing.out.write(GZIP_HEADER);
+			}
+			payload.write(compressing);
+			compressed = compressing.finish(payload.size());
+		} catch (IOException e) {
+			// The stream only writes to memory
+			throw new IllegalStateException(e);
+		} finally {
+			deflater.reset();
+			if (!deflaters.offer(deflater)) {
+				deflater.end();
+			}
+		}
+
+		if (compressed.size() >= payload.size()) {
+			compressed = null;
+		}
+		last.set(new Compressed(payload, compressed));
+		return compressed;
+	}
+
+	/**
+	 * Keep the compressed body on a webhook between attempts, the default, or drop it after each attempt so a parked retry holds only its
+	 * payload and is compressed again when due
+	 * 
+	 * @param keptForRetries
+	 */
+	public void setKeptForRetries(boolean keptForRetries) {
+		this.keptForRetries = keptForRetries;
+	}
+
+	/**
+	 * @return true if webhooks keep their compressed body between attempts
+	 */
+	public boolean isKeptForRetries() {
+		return keptForRetries;
+	}
+
+	/**
+	 * @return the Content-Encoding of compressed bodies
+	 */
+	public String getEncoding() {
+		return encoding;
+	}
+
+	/**
+	 * @return the smallest payload, in bytes, which is compressed
+	 */
+	public int getThreshold() {
+		return threshold;
+	}
+}
@@ -0,0 +1,127 @@
+package com.klatunetworks.webhooks.core;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import com.squareup.okhttp.ResponseBody;
+
+import okio.Buffer;
+import okio.BufferedSource;
+
+/**
+ * How a WebhookService handles response bodies. Webhooks rarely need the body, so it can be discarded, captured up to a size limit, or
+ * streamed to a consumer. Captures and streams are bounded by a read deadline, so a slowly dripped body cannot hold a thread indefinitely.
+ * 
+ * @author Dan Simpson
+ *
+ */
+public final class ResponseBodyPolicy {
+
+	/**
+	 * Reads a response body as it arrives
+	 */
+	@FunctionalInterface
+	public interface BodyConsumer {
+		public void accept(Webhook webhook, BufferedSource source) throws IOException;
+	}
+
+	private enum Mode {
+		DISCARD, CAPTURE, STREAM
+	}
+
+	private final Mode mode;
+	private final long maxBytes;
+	private final long timeoutNanos;
+	private final BodyConsumer consumer;
+
+	private ResponseBodyPolicy(Mode mode, long maxBytes, long timeout, TimeUnit unit, BodyConsumer consumer) {
+		this.mode = mode;
+		this.maxBytes = maxBytes;
+		this.timeoutNanos = unit.toNanos(timeout);
+		this.consumer = consumer;
+	}
+
+	/**
+	 * Close the body without reading it. {@link WebhookResult#getBody()} is always empty.
+	 */
+	public static ResponseBodyPolicy discard() {
+		return new ResponseBodyPolicy(Mode.DISCARD, 0, 0, TimeUnit.NANOSECONDS, null);
+	}
+
+	/**
+	 * Capture up to maxBytes of the body as {@link WebhookResult#getBody()}, the remainder is discarded. The capture ends on a whole
+	 * character, so it may be a few bytes short of maxBytes. If reading fails or the deadline passes, the bytes which arrived are captured
+	 * and the failure is set as the error of the result.
+	 * 
+	 * @param maxBytes
+	 * @param timeout
+	 *          deadline for reading the captured bytes
+	 * @param unit
+	 */
+	public static ResponseBodyPolicy capture(long maxBytes, long timeout, TimeUnit unit) {
+		return new ResponseBodyPolicy(Mode.CAPTURE, maxBytes, timeout, unit, null);
+	}
+
+	/**
+	 * Hand the body to a consumer on the http client thread. {@link WebhookResult#getBody()} is always empty.
+	 * 
+	 * @param consumer
+	 * @param timeout
+	 *          deadline for the consumer to finish reading
+	 * @param unit
+	 */
+	public static ResponseBodyPolicy stream(BodyConsumer consumer, long timeout, TimeUnit unit) {
+		return new ResponseBodyPolicy(Mode.STREAM, 0, timeout, unit, consumer);
+	}
+
+	/**
+	 * Apply the policy to a response body, closing it when done
+	 * 
+	 * @param result
+	 *          the result to set the body on
+	 * @param body
+	 * @throws IOException
+	 *           when reading fails or the deadline passes
+	 */
+	void apply(WebhookResult result, ResponseBody body) throws IOException {
+		if (mode == Mode.DISCARD) {
+			body.close();
+			return;
+		}
+
+		BufferedSource source = body.source();
+		source.timeout().deadlineNanoTime(System.nanoTime() + timeoutNanos);
+		try {
+			if (mode == Mode.CAPTURE) {
+				try {
+					source.request(maxBytes);
+				} finally {
+					Buffer buffer = source.buffer();
+					result.setBody(buffer.readUtf8(codePointBoundary(buffer, Math.min(maxBytes, buffer.size()))));
+				}
+			} else {
+				consumer.accept(result.getWebhook(), source);
+			}
+		} finally {
+			source.timeout().clearDeadline();
+			body.close();
+		}
+	}
+
+	/**
+	 * @return count, or less if it would split the last UTF-8 character of the first count bytes
+	 */
+	private static long codePointBoundary(Buffer buffer, long count) {
+		// Back up over continuation bytes to the lead byte of the last character
+		long lead = count - 1;
+		while (lead >= 0 && count - lead < 4 && (buffer.getByte(lead) & 0xc0) == 0x80) {
+			lead--;
+		}
+		if (lead < 0) {
+			return count;
+		}
+		int b = buffer.getByte(lead) & 0xff;
+		int length = b >= 0xf0 ? 4 : b >= 0xe0 ? 3 : b >= 0xc0 ? 2 : 1;
+		return lead + length > count ? lead : count;
+	}
+}
@@ -1,16 +1,27 @@
 package com.klatunetworks.webhooks.core;
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
-import com.squareup.okhttp.Headers;
+import com.squareup.okhttp.HttpUrl;
 import com.squareup.okhttp.MediaType;
 import com.squareup.okhttp.Request;
 import com.squareup.okhttp.RequestBody;
 
+import okio.ByteString;
+
 /**
  * 
- * Webhook request class.
+ * Webhook request class. Each webhook has an id, sent as the Webhook-Id header so receivers can use it as an idempotency key. Webhooks
+ * are equal when their url and id are equal, so stores treat a resubmission of the same event to the same url as one webhook. The id is
+ * random unless one is given, typically derived from the event.
+ * 
+ * Headers come from a shared {@link WebhookHeaders} set, with headers set on the webhook itself layered on top.
  * 
  * @author Dan Simpson
  *
@@ -19,16 +30,39 @@ public class Webhook {
 
 	public static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
 
+	public static final String ID_HEADER = "Webhook-Id";
+
+	/**
+	 * A compressed body, with the compression it was made by
+	 */
+	private static final class Compressed {
+
+		private final RequestCompression compression;
+		private final RequestBody body;
+
+		Compressed(RequestCompression compression, RequestBody body) {
+			this.compression = compression;
+			this.body = body;
+		}
+	}
+
+	private String id;
 	private String url;
-	private String json;
-	private Map<String, String> headers = new HashMap<String, String>();
+	private String host;
+	private ByteString payload;
+	private RequestBody body;
+	private Compressed compressed;
+	private WebhookHeaders shared = WebhookHeaders.EMPTY;
+	// Headers of this webhook alone, null until one is set
+	private Map<String, String> headers;
+	private long deadline = 0;
 
 	public Webhook() {
+		this.id = newId();
 	}
 
 	public Webhook(String url, String json) {
-		this.url = url;
-		this.json = json;
+		this(url, ByteString.encodeUtf8(json));
 	}
 
 	/**
@@ -39,11 +73,98 @@ public class Webhook {
 	 * @param headers
 	 */
 	public Webhook(String url, String json, Map<String, String> headers) {
+		this(url, ByteString.encodeUtf8(json), headers);
+	}
+
+	/**
+	 * Build webhook request with url, json and a shared header set
+	 * 
+	 * @param url
+	 * @param json
+	 * @param headers
+	 */
+	public Webhook(String url, String json, WebhookHeaders headers) {
+		this(newId(), url, ByteString.encodeUtf8(json), headers);
+	}
+
+	/**
+	 * Build webhook request with a pre-encoded json payload. The payload is immutable, so it may be shared by any number of webhooks and is
+	 * never re-encoded on retries.
+	 * 
+	 * @param url
+	 * @param payload
+	 *          utf-8 encoded json
+	 */
+	public Webhook(String url, ByteString payload) {
+		this(newId(), url, payload, WebhookHeaders.EMPTY);
+	}
+
+	/**
+	 * Build webhook request with url, pre-encoded json payload and headers
+	 * 
+	 * @param url
+	 * @param payload
+	 *          utf-8 encoded json
+	 * @param headers
+	 */
+	public Webhook(String url, ByteString payload, Map<String, String> headers) {
+		this(newId(), url, payload, headers);
+	}
+
+	/**
+	 * Build webhook request with an id, such as the id of the event, which makes resubmissions of the event to the url equal
+	 * 
+	 * @param id
+	 * @param url
+	 * @param payload
+	 *          utf-8 encoded json
+	 * @param headers
+	 */
+	public Webhook(String id, String url, ByteString payload, Map<String, String> headers) {
+		if (id == null) {
+			throw new IllegalArgumentException("A webhook id is required");
+		}
+		this.id = id;
 		this.url = url;
-		this.json = json;
+		this.payload = payload;
 		this.headers = headers;
 	}
 
+	/**
+	 * Build webhook request with url, pre-encoded json payload and a shared header set
+	 * 
+	 * @param url
+	 * @param payload
+	 *          utf-8 encoded json
+	 * @param headers
+	 *          shared by any number of webhooks
+	 */
+	public Webhook(String url, ByteString payload, WebhookHeaders headers) {
+		this(newId(), url, payload, headers);
+	}
+
+	/**
+	 * Build webhook request with an id, pre-encoded json payload and a shared header set
+	 * 
+	 * @param id
+	 * @param url
+	 * @param payload
+	 *          utf-8 encoded json
+	 * @param headers
+	 *          shared by any number of webhooks
+	 */
+	public Webhook(String id, String url, ByteString payload, WebhookHeaders headers) {
+		this(id, url, payload, (Map<String, String>) null);
+		this.shared = headers == null ? WebhookHeaders.EMPTY : headers;
+	}
+
+	/**
+	 * @return the id, sent as the Webhook-Id header
+	 */
+	public String getId() {
+		return id;
+	}
+
 	/**
 	 * @return the url
 	 */
@@ -52,10 +173,76 @@ public class Webhook {
 	}
 
 	/**
+	 * @return the host of the url, or an empty string if the url is invalid
+	 */
+	public String getHost() {
+		if (host == null) {
+			HttpUrl parsed = url == null ? null : HttpUrl.parse(url);
+			host = parsed == null ? "" : parsed.host();
+		}
+		return host;
+	}
+
+	/**
+	 * @return the json body
+	 */
+	public String getJson() {
+		return payload.utf8();
+	}
+
+	/**
+	 * @return the utf-8 encoded json body
+	 */
+	public ByteString getPayload() {
+		return payload;
+	}
+
+	/**
+	 * Without a shared set these are the headers of the webhook, and changes to the map are sent. With a shared set, such as webhooks read
+	 * back from a store, every header is returned as an unmodifiable copy, the shared set with the headers of this webhook on top; change
+	 * those with {@link #setHeader(String, String)}.
+	 * 
 	 * @return the headers
 	 */
 	public Map<String, String> getHeaders() {
-		return headers;
+		if (shared.isEmpty()) {
+			if (headers == null) {
+				headers = new HashMap<String, String>(4);
+			}
+			return headers;
+		}
+		if (headers == null) {
+			return shared.asMap();
+		}
+		Map<String, String> merged = new LinkedHashMap<String, String>(shared.asMap());
+		merged.putAll(headers);
+		return Collections.unmodifiableMap(merged);
+	}
+
+	/**
+	 * @return the shared header set, without the headers of this webhook
+	 */
+	public WebhookHeaders getSharedHeaders() {
+		return shared;
+	}
+
+	/**
+	 * @return milliseconds an attempt may take before it is abandoned, or 0 for the client timeouts alone
+	 */
+	public long getDeadline() {
+		return deadline;
+	}
+
+	/**
+	 * Abandon an attempt which has no response within the deadline, rather than waiting for the read timeout of a hung connection. The
+	 * attempt fails, so a store schedules the retry. Deadlines are not persisted by durable stores.
+	 * 
+	 * @param deadline
+	 *          per attempt, or 0 for none
+	 * @param unit
+	 */
+	public void setDeadline(long deadline, TimeUnit unit) {
+		this.deadline = unit.toMillis(deadline);
 	}
 
 	/**
@@ -63,7 +250,49 @@ public class Webhook {
 	 * @return a Request.Builder for okhttp
 	 */
 	protected Request.Builder toBuilder() {
-		return new Request.Builder().url(url).headers(Headers.of(headers)).post(RequestBody.create(JSON, json));
+		if (body == null) {
+			body = RequestBody.create(JSON, payload);
+		}
+		Request.Builder builder = new Request.Builder().url(url).headers(shared.toHeaders());
+		if (headers != null) {
+			for (Map.Entry<String, String> header : headers.entrySet()) {
+				builder.header(header.getKey(), header.getValue());
+			}
+		}
+		return builder.header(ID_HEADER, id).post(body);
+	}
+
+	/**
+	 * @param compression
+	 *          the compression the receiver accepts, or null
+	 * @return a Request.Builder for okhttp, with the body compressed if it is worthwhile. The compressed body is kept for retries, unless
+	 *         the compression drops it after each attempt.
+	 */
+	protected Request.Builder toBuilder(RequestCompression compression) {
+		Request.Builder builder = toBuilder();
+		if (compression == null || payload.size() < compression.getThreshold()) {
+			return builder;
+		}
+		Compressed current = compressed;
+		if (current == null || current.compression != compression) {
+			ByteString bytes = compression.compress(payload);
+			current = new Compressed(compression, bytes == null ? null : RequestBody.create(JSON, bytes));
+			compressed = current;
+		}
+		if (current.body != null) {
+			builder.header("Content-Encoding", compression.getEncoding()).post(current.body);
+		}
+		return builder;
+	}
+
+	/**
+	 * Drop the compressed body once an attempt completes, if its compression does not keep it for retries
+	 */
+	void releaseCompressed() {
+		Compressed current = compressed;
+		if (current != null && !current.compression.isKeptForRetries()) {
+			compressed = null;
+		}
 	}
 
 	/**
@@ -75,6 +304,36 @@ public class Webhook {
 	 *          of the header
 	 */
 	public void setHeader(String name, String value) {
+		if (headers == null) {
+			headers = new HashMap<String, String>(4);
+		}
 		headers.put(name, value);
 	}
+
+	@Override
+	public int hashCode() {
+		return id.hashCode() * 31 + (url == null ? 0 : url.hashCode());
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof Webhook)) {
+			return false;
+		}
+		Webhook other = (Webhook) obj;
+		return id.equals(other.id) && (url == null ? other.url == null : url.equals(other.url));
+	}
+
+	/**
+	 * @return a random version 4 UUID, with the version and variant bits set so receivers which parse the id accept it
+	 */
+	private static String newId() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		long msb = (random.nextLong() & ~0xF000L) | 0x4000L;
+		long lsb = (random.nextLong() & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L;
+		return new UUID(msb, lsb).toString();
+	}
 }
@@ -0,0 +1,230 @@
+package com.klatunetworks.webhooks.core;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import okio.Buffer;
+
+/**
+ * Opt-in batching for receivers which accept JSON arrays. Webhooks for the same url and headers are accumulated until a max count, max
+ * byte size or linger time is reached, then sent through the underlying service as one request with a JSON array body. The result of the
+ * batch is split back into one result per webhook, so a store behind a WebhookStoreService still tracks and retries every logical webhook
+ * on its own; a failed batch is retried as individual webhooks, which may be batched again.
+ *
+ * When used with a WebhookStoreService, each waiting webhook holds an in-flight permit, so the in-flight limits should be at least the max
+ * count or batches will only ever be sent on linger.
+ *
+ * Lingers are timed by one daemon scheduler shared by every batcher and service, which hands the sends off to a pool. Once closed, the
+ * batcher fails webhooks with a RejectedExecutionException.
+ *
+ * @author Dan Simpson
+ *
+ */
+public class WebhookBatcher implements WebhookServiceContract, Closeable {
+
+	private static final class Key {
+
+		private final String url;
+		private final WebhookHeaders headers;
+
+		Key(Webhook webhook) {
+			this.url = webhook.getUrl();
+			// A snapshot, so later changes to the headers of the webhook can not move the key
+			Map<String, String> headers = webhook.getHeaders();
+			WebhookHeaders shared = webhook.getSharedHeaders();
+			this.headers = headers == shared.asMap() ? shared : WebhookHeaders.of(headers);
+		}
+
+		@Override
+		public int hashCode() {
+			return url.hashCode() * 31 + headers.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return url.equals(other.url) && headers.equals(other.headers);
+		}
+	}
+
+	private final class Batch {
+
+		private final Key key;
+		private final List<Webhook> webhooks = new ArrayList<Webhook>();
+		private final List<Consumer<WebhookResult>> callbacks = new ArrayList<Consumer<WebhookResult>>();
+		private long bytes = 2;
+		private ScheduledFuture<?> linger;
+
+		Batch(Key key) {
+			this.key = key;
+		}
+
+		boolean fits(Webhook webhook) {
+			return webhooks.size() < maxCount && bytes + webhook.getPayload().size() + 1 <= maxBytes;
+		}
+
+		void add(Webhook webhook, Consumer<WebhookResult> callback) {
+			webhooks.add(webhook);
+			callbacks.add(callback);
+			bytes += webhook.getPayload().size() + (webhooks.size() > 1 ? 1 : 0);
+		}
+
+		boolean isFull() {
+			return webhooks.size() >= maxCount || bytes >= maxBytes;
+		}
+
+		void send() {
+			if (linger != null) {
+				linger.cancel(false);
+			}
+			Buffer buffer = new Buffer();
+			buffer.writeByte('[');
+			for (int i = 0; i < webhooks.size(); i++) {
+				if (i > 0) {
+					buffer.writeByte(',');
+				}
+				buffer.write(webhooks.get(i).getPayload());
+			}
+			buffer.writeByte(']');
+			service.submit(new Webhook(key.url, buffer.readByteString(), key.headers), this::complete);
+		}
+
+		void complete(WebhookResult batch) {
+			for (int i = 0; i < webhooks.size(); i++) {
+				WebhookResult result = new WebhookResult(webhooks.get(i));
+				batch.getResponse().ifPresent(result::setResponse);
+				batch.getError().ifPresent(result::setError);
+				batch.getBody().ifPresent(result::setBody);
+				result.setLatency(batch.getLatency());
+				callbacks.get(i).accept(result);
+			}
+		}
+	}
+
+	public static final int DEFAULT_MAX_COUNT = 100;
+	public static final long DEFAULT_MAX_BYTES = 1024 * 1024;
+	public static final long DEFAULT_LINGER_MILLIS = 50;
+
+	private final WebhookServiceContract service;
+	private final int maxCount;
+	private final long maxBytes;
+	private final long linger;
+	private final ConcurrentHashMap<Key, Batch> batches = new ConcurrentHashMap<Key, Batch>();
+	private volatile boolean closed = false;
+
+	/**
+	 * Batch with default limits: 100 webhooks, 1MB or 50ms
+	 *
+	 * @param service
+	 *          the service batches are sent through
+	 */
+	public WebhookBatcher(WebhookServiceContract service) {
+		this(service, DEFAULT_MAX_COUNT, DEFAULT_MAX_BYTES, DEFAULT_LINGER_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param service
+	 *          the service batches are sent through
+	 * @param maxCount
+	 *          the maximum number of webhooks in a batch
+	 * @param maxBytes
+	 *          the maximum size of a batch body, a single larger webhook is sent alone
+	 * @param linger
+	 *          the maximum time the first webhook of a batch waits for others
+	 * @param unit
+	 */
+	public WebhookBatcher(WebhookServiceContract service, int maxCount, long maxBytes, long linger, TimeUnit unit) {
+		super();
+		if (maxCount < 1 || maxBytes < 1 || linger < 0) {
+			throw new IllegalArgumentException("Batch limits must be positive");
+		}
+		this.service = service;
+		this.maxCount = maxCount;
+		this.maxBytes = maxBytes;
+		this.linger = unit.toNanos(linger);
+	}
+
+	@Override
+	public void submit(Webhook webhook, Consumer<WebhookResult> callback) {
+		if (closed) {
+			WebhookResult result = new WebhookResult(webhook);
+			result.setError(new RejectedExecutionException("Batcher is closed"));
+			callback.accept(result);
+			return;
+		}
+		Key key = new Key(webhook);
+		List<Batch> ready = new ArrayList<Batch>(2);
+		batches.compute(key, (k, batch) -> {
+			if (batch != null && !batch.fits(webhook)) {
+				ready.add(batch);
+				batch = null;
+			}
+			if (batch == null) {
+				batch = new Batch(k);
+			}
+			batch.add(webhook, callback);
+			if (batch.isFull()) {
+				ready.add(batch);
+				return null;
+			}
+			if (batch.linger == null) {
+				Batch lingering = batch;
+				batch.linger = WebhookService.getTimer().schedule(() -> WebhookService.handOff(() -> flush(lingering)), linger,
+						TimeUnit.NANOSECONDS);
+			}
+			return batch;
+		});
+		for (Batch batch : ready) {
+			batch.send();
+		}
+		if (closed) {
+			// Raced with close, which may have flushed before this batch was added
+			flush();
+		}
+	}
+
+	private void flush(Batch batch) {
+		if (batches.remove(batch.key, batch)) {
+			batch.send();
+		}
+	}
+
+	/**
+	 * Send every pending batch now
+	 */
+	public void flush() {
+		for (Batch batch : batches.values()) {
+			flush(batch);
+		}
+	}
+
+	/**
+	 * @return an estimate of the number of webhooks waiting to be batched
+	 */
+	public int getPending() {
+		int pending = 0;
+		for (Batch batch : batches.values()) {
+			pending += batch.webhooks.size();
+		}
+		return pending;
+	}
+
+	/**
+	 * Send every pending batch and fail later submissions
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		flush();
+	}
+}
@@ -0,0 +1,138 @@
+package com.klatunetworks.webhooks.core;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.squareup.okhttp.Headers;
+
+/**
+ * An immutable set of headers, converted to OkHttp Headers once, which any number of webhooks may share. Most webhooks carry the same few
+ * static headers, such as an auth token and user agent, so build the set once per receiver and pass it to each webhook; headers set on a
+ * webhook are layered on top without copying the set.
+ *
+ * @author Dan Simpson
+ *
+ */
+public final class WebhookHeaders {
+
+	public static final WebhookHeaders EMPTY = new WebhookHeaders(Collections.<String, String> emptyMap());
+
+	/**
+	 * Interned sets, direct mapped by hash: a set replaces whatever held its slot, so sets unique to one webhook pass through without
+	 * growing the table or pinning out the common ones
+	 */
+	private static final int INTERNED = 1024;
+
+	private static final AtomicReferenceArray<WebhookHeaders> interned = new AtomicReferenceArray<WebhookHeaders>(INTERNED);
+
+	private final Map<String, String> map;
+	private final Headers headers;
+	private final int hash;
+
+	private WebhookHeaders(Map<String, String> map) {
+		this.map = map;
+		this.headers = Headers.of(map);
+		this.hash = map.hashCode();
+	}
+
+	/**
+	 * @param headers
+	 *          names and values, copied
+	 * @return the set of the headers
+	 */
+	public static WebhookHeaders of(Map<String, String> headers) {
+		if (headers.isEmpty()) {
+			return EMPTY;
+		}
+		return new WebhookHeaders(Collections.unmodifiableMap(new LinkedHashMap<String, String>(headers)));
+	}
+
+	/**
+	 * @param namesAndValues
+	 *          alternating header names and values
+	 * @return the set of the headers
+	 */
+	public static WebhookHeaders of(String... namesAndValues) {
+		if (namesAndValues.length % 2 != 0) {
+			throw new IllegalArgumentException("Expected alternating header names and values");
+		}
+		Map<String, String> headers = new LinkedHashMap<String, String>();
+		for (int i = 0; i < namesAndValues.length; i += 2) {
+			headers.put(namesAndValues[i], namesAndValues[i + 1]);
+		}
+		return of(headers);
+	}
+
+	/**
+	 * The shared set equal to the headers, such as for webhooks read back from a store, which would otherwise each hold a copy
+	 *
+	 * @param headers
+	 * @return an equal set, shared with earlier calls unless another set took its slot since
+	 */
+	public static WebhookHeaders intern(Map<String, String> headers) {
+		WebhookHeaders candidate = of(headers);
+		if (candidate == EMPTY) {
+			return EMPTY;
+		}
+		int slot = (candidate.hash ^ (candidate.hash >>> 16)) & (INTERNED - 1);
+		WebhookHeaders existing = interned.get(slot);
+		if (candidate.equals(existing)) {
+			return existing;
+		}
+		interned.set(slot, candidate);
+		return candidate;
+	}
+
+	/**
+	 * @param name
+	 * @param value
+	 * @return a new set with the header added or replaced
+	 */
+	public WebhookHeaders with(String name, String value) {
+		Map<String, String> headers = new LinkedHashMap<String, String>(map);
+		headers.put(name, value);
+		return of(headers);
+	}
+
+	/**
+	 * @return the headers as an unmodifiable map
+	 */
+	public Map<String, String> asMap() {
+		return map;
+	}
+
+	/**
+	 * @return the headers for OkHttp, built once
+	 */
+	public Headers toHeaders() {
+		return headers;
+	}
+
+	public boolean isEmpty() {
+		return map.isEmpty();
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof WebhookHeaders)) {
+			return false;
+		}
+		WebhookHeaders other = (WebhookHeaders) obj;
+		return hash == other.hash && map.equals(other.map);
+	}
+
+	@Override
+	public String toString() {
+		return map.toString();
+	}
+}
@@ -0,0 +1,75 @@
+package com.klatunetworks.webhooks.core;
+
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * Metric handles of a WebhookService, resolved from the registry once so the completion path does no lookups.
+ * 
+ * <ul>
+ * <li>webhook.latency: submit to completion</li>
+ * <li>webhook.queued: submit to the call starting on a dispatcher thread</li>
+ * <li>webhook.connect: call start to the request being written, including connection setup</li>
+ * <li>webhook.ttfb: request written to response headers received</li>
+ * <li>webhook.endpoint.&lt;host&gt;.*: latency and status class meters of the heaviest hosts, see {@link HostSketch}</li>
+ * <li>webhook.endpoints.other.*: the same metrics for every other host</li>
+ * </ul>
+ * 
+ * @author Dan Simpson
+ *
+ */
+final class WebhookMetrics {
+
+	private final Meter error;
+	private final Meter complete;
+	private final Meter success;
+	private final Meter failure;
+	private final Timer latency;
+	private final Timer queued;
+	private final Timer connect;
+	private final Timer ttfb;
+	private final HostSketch hosts;
+
+	public WebhookMetrics(MetricRegistry registry, int trackedHosts) {
+		this.error = registry.meter("webhook.error");
+		this.complete = registry.meter("webhook.complete");
+		this.success = registry.meter("webhook.complete.success");
+		this.failure = registry.meter("webhook.complete.error");
+		this.latency = registry.timer("webhook.latency");
+		this.queued = registry.timer("webhook.queued");
+		this.connect = registry.timer("webhook.connect");
+		this.ttfb = registry.timer("webhook.ttfb");
+		this.hosts = new HostSketch(registry, trackedHosts);
+	}
+
+	/**
+	 * Record the phases of a call. Timestamps are System.nanoTime() values, 0 when the call did not reach the phase.
+	 */
+	public void record(WebhookResult result, long created, long started, long sent, long received, long completed) {
+		if (result.hasResponse()) {
+			complete.mark();
+			if (result.isSuccessful()) {
+				success.mark();
+			} else {
+				failure.mark();
+			}
+		} else {
+			error.mark();
+		}
+
+		latency.update(completed - created, TimeUnit.NANOSECONDS);
+		hosts.offer(result.getWebhook().getHost()).record(result, completed - created);
+		if (started > 0) {
+			queued.update(started - created, TimeUnit.NANOSECONDS);
+			if (sent > 0) {
+				connect.update(sent - started, TimeUnit.NANOSECONDS);
+				if (received > 0) {
+					ttfb.update(received - sent, TimeUnit.NANOSECONDS);
+				}
+			}
+		}
+	}
+}
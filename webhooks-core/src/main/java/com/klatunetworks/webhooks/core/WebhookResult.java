@@ -1,6 +1,10 @@
 package com.klatunetworks.webhooks.core;
 
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 
 import com.squareup.okhttp.Response;
 
@@ -98,7 +102,8 @@ public class WebhookResult {
 	}
 
 	/**
-	 * @return The response body
+	 * @return The response body, as captured by the service's {@link ResponseBodyPolicy}. Empty when the body was discarded or streamed.
+	 *         Incomplete when reading the body failed, which sets the error.
 	 */
 	public Optional<String> getBody() {
 		return body;
@@ -135,8 +140,34 @@ public class WebhookResult {
 	}
 
 	/**
+	 * @return the delay requested by a Retry-After response header, in seconds or as an RFC 1123 date, in milliseconds, or -1 if there is
+	 *         none
+	 */
+	public long getRetryAfter() {
+		if (!response.isPresent()) {
+			return -1;
+		}
+		String value = response.get().header("Retry-After");
+		if (value == null) {
+			return -1;
+		}
+		try {
+			return TimeUnit.SECONDS.toMillis(Long.parseLong(value.trim()));
+		} catch (NumberFormatException e) {
+			try {
+				long at = ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+				return Math.max(0, at - System.currentTimeMillis());
+			} catch (DateTimeParseException invalid) {
+				return -1;
+			}
+		}
+	}
+
+	/**
+	 * The receiver accepted the webhook once it answered with a successful status, so a failure reading the response body, such as the
+	 * read deadline of the {@link ResponseBodyPolicy} passing, does not make the result unsuccessful. Check {@link #hasError()} for it.
 	 * 
-	 * @return true if there was a resposne with a successful status code
+	 * @return true if there was a response with a successful status code
 	 */
 	public boolean isSuccessful() {
 		return response.map(v -> v.isSuccessful()).orElse(false);
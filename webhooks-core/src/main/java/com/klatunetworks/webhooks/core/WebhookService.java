@@ -1,11 +1,21 @@
 package com.klatunetworks.webhooks.core;
 
 import java.io.IOException;
-import java.util.Optional;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
 import com.codahale.metrics.MetricRegistry;
+import com.squareup.okhttp.Call;
 import com.squareup.okhttp.Callback;
+import com.squareup.okhttp.Interceptor;
 import com.squareup.okhttp.OkHttpClient;
 import com.squareup.okhttp.Request;
 import com.squareup.okhttp.Response;
@@ -19,15 +29,32 @@ import com.squareup.okhttp.Response;
  */
 public class WebhookService implements WebhookServiceContract {
 
-	private final class ForwardingCallback implements Callback {
+	/**
+	 * Phase timestamps of one call, the request tag, written by the interceptors on the thread executing the call
+	 */
+	private static class Phases {
+
+		long started;
+		long sent;
+		long received;
+
+		void copy(Phases other) {
+			started = other.started;
+			sent = other.sent;
+			received = other.received;
+		}
+	}
+
+	private final class ForwardingCallback extends Phases implements Callback {
 
 		private final long created;
 		private final Webhook webhook;
 		private final Consumer<WebhookResult> callback;
+		private boolean delivered = false;
 
 		public ForwardingCallback(Webhook webhook, Consumer<WebhookResult> callback) {
 			super();
-			this.created = System.currentTimeMillis();
+			this.created = System.nanoTime();
 			this.webhook = webhook;
 			this.callback = callback;
 		}
@@ -35,44 +62,203 @@ public class WebhookService implements WebhookServiceContract {
 		@Override
 		public void onFailure(Request request, IOException exception) {
 			WebhookResult result = new WebhookResult(webhook);
-			result.setLatency(System.currentTimeMillis() - created);
 			result.setError(exception);
-			callback.accept(result);
-
-			// track metrics
-			metrics.ifPresent((m) -> {
-				m.meter("webhook.error").mark();
-				m.histogram("webhook.latency").update(result.getLatency());
-			});
+			complete(result);
 		}
 
 		@Override
 		public void onResponse(Response response) {
 			WebhookResult result = new WebhookResult(webhook);
-			result.setLatency(System.currentTimeMillis() - created);
 			result.setResponse(response);
 			try {
-				result.setBody(response.body().string());
+				bodyPolicy.apply(result, response.body());
 			} catch (IOException error) {
 				result.setError(error);
 			}
+			complete(result);
+		}
+
+		/**
+		 * Deliver the result, once: a failure reported after the consumer has its result, such as when the consumer throws, is dropped
+		 */
+		private void complete(WebhookResult result) {
+			if (delivered) {
+				return;
+			}
+			delivered = true;
+			webhook.releaseCompressed();
+			long completed = System.nanoTime();
+			result.setLatency(TimeUnit.NANOSECONDS.toMillis(completed - created));
+			if (metrics != null) {
+				metrics.record(result, created, started, sent, received, completed);
+			}
 			callback.accept(result);
+		}
+	}
+
+	/**
+	 * The attempts of one delivery with a deadline or hedging. The first response wins and the remaining calls are canceled; the delivery
+	 * fails when every attempt has failed or the deadline passes.
+	 */
+	private final class Attempts {
+
+		private static final int OPEN = -2;
+
+		private final Request request;
+		private final ForwardingCallback forwarding;
+		private final HedgePolicy hedging;
+		// The attempt which won, -1 for a failure, unset while the delivery is open
+		private final AtomicInteger outcome = new AtomicInteger(OPEN);
+		private final AtomicInteger pending = new AtomicInteger();
+		private final Call[] calls = new Call[2];
+		private final Phases[] phases = { new Phases(), new Phases() };
+		private ScheduledFuture<?> hedge;
+		private ScheduledFuture<?> deadline;
+		private volatile long firstStarted;
+
+		Attempts(Request request, ForwardingCallback forwarding, HedgePolicy hedging) {
+			this.request = request;
+			this.forwarding = forwarding;
+			this.hedging = hedging;
+		}
 
-			// track metrics for request
-			metrics.ifPresent((m) -> {
-				m.meter("webhook.complete").mark();
-				if (result.isSuccessful()) {
-					m.meter("webhook.complete.success").mark();
-				} else {
-					m.meter("webhook.complete.error").mark();
+		void start(long deadlineMillis) {
+			firstStarted = System.nanoTime();
+			synchronized (this) {
+				// The timer is shared, so its tasks only hand off: dispatch may block on admission and expiry runs the callback
+				if (hedging != null) {
+					hedge = getTimer().schedule(() -> handOff(() -> attempt(1)), hedging.getDelay(), TimeUnit.MILLISECONDS);
+				}
+				if (deadlineMillis > 0) {
+					deadline = getTimer().schedule(() -> handOff(this::expire), deadlineMillis, TimeUnit.MILLISECONDS);
+				}
+			}
+			attempt(0);
+		}
+
+		private void attempt(int n) {
+			if (outcome.get() != OPEN) {
+				return;
+			}
+			pending.incrementAndGet();
+			Call call = dispatch(request.newBuilder().tag(phases[n]).build(), new Callback() {
+				@Override
+				public void onFailure(Request request, IOException exception) {
+					if (pending.decrementAndGet() == 0 && finish(-1)) {
+						forwarding.copy(phases[n]);
+						forwarding.onFailure(request, exception);
+					}
+				}
+
+				@Override
+				public void onResponse(Response response) throws IOException {
+					if (!finish(n)) {
+						// Lost the race
+						response.body().close();
+						return;
+					}
+					recordLatency();
+					forwarding.copy(phases[n]);
+					forwarding.onResponse(response);
 				}
-				m.histogram("webhook.latency").update(result.getLatency());
 			});
+			synchronized (this) {
+				calls[n] = call;
+			}
+			int won = outcome.get();
+			if (won != OPEN && won != n) {
+				// Finished while dispatching, the call was not there to cancel
+				call.cancel();
+			}
+		}
+
+		/**
+		 * Record the latency of the receiver from the start of the first attempt. When the hedge wins, the first attempt took at least as
+		 * long, so recording the hedge's own latency would pull the delay down and hedge ever more requests.
+		 */
+		private void recordLatency() {
+			if (hedging != null) {
+				hedging.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - firstStarted));
+			}
+		}
+
+		private void expire() {
+			if (finish(-1)) {
+				// No response within the deadline, which is a lower bound of the latency
+				recordLatency();
+				forwarding.copy(phases[0]);
+				forwarding.onFailure(request, new InterruptedIOException("Delivery deadline exceeded"));
+			}
+		}
+
+		/**
+		 * @param attempt
+		 *          the attempt with the response, or -1
+		 * @return true for the one caller which completes the delivery, after canceling everything else
+		 */
+		private boolean finish(int attempt) {
+			if (!outcome.compareAndSet(OPEN, attempt)) {
+				return false;
+			}
+			synchronized (this) {
+				if (hedge != null) {
+					hedge.cancel(false);
+				}
+				if (deadline != null) {
+					deadline.cancel(false);
+				}
+				for (int i = 0; i < calls.length; i++) {
+					if (calls[i] != null && i != attempt) {
+						calls[i].cancel();
+					}
+				}
+			}
+			return true;
 		}
 	}
 
-	private final Optional<MetricRegistry> metrics;
+	/**
+	 * Marks when a call leaves the dispatcher queue
+	 */
+	private static final Interceptor STARTED = (chain) -> {
+		Object tag = chain.request().tag();
+		if (tag instanceof Phases) {
+			((Phases) tag).started = System.nanoTime();
+		}
+		return chain.proceed(chain.request());
+	};
+
+	/**
+	 * Marks when the request is written on a connection and when the response headers arrive
+	 */
+	private static final Interceptor SENT = (chain) -> {
+		Object tag = chain.request().tag();
+		if (!(tag instanceof Phases)) {
+			return chain.proceed(chain.request());
+		}
+		Phases phases = (Phases) tag;
+		phases.sent = System.nanoTime();
+		Response response = chain.proceed(chain.request());
+		phases.received = System.nanoTime();
+		return response;
+	};
+
+	/**
+	 * Capture up to 64KB of each response body, within 10 seconds
+	 */
+	public static final ResponseBodyPolicy DEFAULT_BODY_POLICY = ResponseBodyPolicy.capture(64 * 1024, 10, TimeUnit.SECONDS);
+
+	/**
+	 * Number of hosts given their own endpoint metrics, the rest are grouped under "other"
+	 */
+	public static final int DEFAULT_TRACKED_HOSTS = 100;
+
+	private final WebhookMetrics metrics;
 	private final OkHttpClient client;
+	private final ResponseBodyPolicy bodyPolicy;
+	private volatile Function<Webhook, WebhookSigner> signers;
+	private volatile Function<Webhook, RequestCompression> compression;
+	private volatile Function<Webhook, HedgePolicy> hedging;
 
 	/**
 	 * Create a new WebhookService with default http client
@@ -91,9 +277,46 @@ public class WebhookService implements WebhookServiceContract {
 	}
 
 	public WebhookService(OkHttpClient client, MetricRegistry metrics) {
+		this(client, metrics, DEFAULT_BODY_POLICY);
+	}
+
+	/**
+	 * Build a Webhook service with a given HTTP client and response body handling
+	 * 
+	 * @param client
+	 * @param metrics
+	 *          optional metrics registry
+	 * @param bodyPolicy
+	 *          how response bodies are read
+	 */
+	public WebhookService(OkHttpClient client, MetricRegistry metrics, ResponseBodyPolicy bodyPolicy) {
+		this(client, metrics, bodyPolicy, DEFAULT_TRACKED_HOSTS);
+	}
+
+	/**
+	 * Build a Webhook service with a given HTTP client, response body handling and endpoint metric cardinality
+	 * 
+	 * @param client
+	 * @param metrics
+	 *          optional metrics registry
+	 * @param bodyPolicy
+	 *          how response bodies are read
+	 * @param trackedHosts
+	 *          the maximum number of hosts with their own endpoint metrics
+	 */
+	public WebhookService(OkHttpClient client, MetricRegistry metrics, ResponseBodyPolicy bodyPolicy, int trackedHosts) {
 		super();
-		this.client = client;
-		this.metrics = Optional.ofNullable(metrics);
+		this.bodyPolicy = bodyPolicy;
+		if (metrics == null) {
+			this.client = client;
+			this.metrics = null;
+		} else {
+			// Instrumented copy, which shares the dispatcher and connection pool of the given client
+			this.client = client.clone();
+			this.client.interceptors().add(STARTED);
+			this.client.networkInterceptors().add(SENT);
+			this.metrics = new WebhookMetrics(metrics, trackedHosts);
+		}
 	}
 
 	/**
@@ -105,10 +328,117 @@ public class WebhookService implements WebhookServiceContract {
 	 *          the callback consumer
 	 */
 	public void submit(Webhook webhook, Consumer<WebhookResult> callback) {
-		client.newCall(webhook.toBuilder().build()).enqueue(new ForwardingCallback(webhook, callback));
+		ForwardingCallback forwarding = new ForwardingCallback(webhook, callback);
+		Function<Webhook, RequestCompression> compression = this.compression;
+		Request.Builder builder = webhook.toBuilder(compression == null ? null : compression.apply(webhook)).tag(forwarding);
+		Function<Webhook, WebhookSigner> signers = this.signers;
+		if (signers != null) {
+			WebhookSigner signer = signers.apply(webhook);
+			if (signer != null) {
+				signer.sign(webhook, builder);
+			}
+		}
+		Function<Webhook, HedgePolicy> hedging = this.hedging;
+		HedgePolicy hedge = hedging == null ? null : hedging.apply(webhook);
+		if (hedge == null && webhook.getDeadline() <= 0) {
+			dispatch(builder.build(), forwarding);
+		} else {
+			new Attempts(builder.build(), forwarding, hedge).start(webhook.getDeadline());
+		}
+	}
+
+	/**
+	 * Sign every attempt of a webhook with the signer for its receiver. Signatures are made when the request is built, so webhooks
+	 * recovered by a store are signed too and retries carry a fresh timestamp.
+	 * 
+	 * @param signers
+	 *          the signer for a webhook, typically by host, or null to send it unsigned
+	 */
+	public void setSigners(Function<Webhook, WebhookSigner> signers) {
+		this.signers = signers;
+	}
+
+	/**
+	 * Compress request bodies for receivers which accept a Content-Encoding. Signatures are made over the uncompressed payload.
+	 * 
+	 * @param compression
+	 *          the compression for a webhook, typically by host, or null to send it uncompressed
+	 */
+	public void setCompression(Function<Webhook, RequestCompression> compression) {
+		this.compression = compression;
+	}
+
+	/**
+	 * Hedge deliveries to receivers which treat duplicate deliveries as one. A slow attempt gets a second attempt on another connection
+	 * after the delay of the policy; the first response wins and the other call is canceled.
+	 * 
+	 * @param hedging
+	 *          the policy for a webhook, one per idempotent receiver, or null to never hedge it
+	 */
+	public void setHedging(Function<Webhook, HedgePolicy> hedging) {
+		this.hedging = hedging;
+	}
+
+	/**
+	 * Execute a request, which by default is queued on the OkHttp dispatcher
+	 * 
+	 * @param request
+	 * @param callback
+	 *          to be invoked exactly once with the outcome of the request
+	 * @return the call, which may be canceled
+	 */
+	protected Call dispatch(Request request, Callback callback) {
+		Call call = client.newCall(request);
+		call.enqueue(callback);
+		return call;
+	}
+
+	/**
+	 * @return the client requests are executed with, instrumented when the service has metrics
+	 */
+	protected OkHttpClient getClient() {
+		return client;
 	}
 
 	private static OkHttpClient sharedClient;
+	private static ScheduledExecutorService timer;
+	private static ExecutorService handOffs;
+
+	/**
+	 * @return the timer of hedges, deadlines and batch lingers, started on first use. Tasks only hand work off, see
+	 *         {@link #handOff(Runnable)}.
+	 */
+	static synchronized ScheduledExecutorService getTimer() {
+		if (timer == null) {
+			ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, (runnable) -> {
+				Thread thread = new Thread(runnable, "webhook-timer");
+				thread.setDaemon(true);
+				return thread;
+			});
+			executor.setRemoveOnCancelPolicy(true);
+			timer = executor;
+		}
+		return timer;
+	}
+
+	/**
+	 * Run timer work on a pool of daemon threads, so a submit which blocks, such as on admission to a BlockingWebhookService, does not hold
+	 * up the timer. The pool only grows while such work waits.
+	 */
+	static void handOff(Runnable task) {
+		ExecutorService executor;
+		synchronized (WebhookService.class) {
+			if (handOffs == null) {
+				handOffs = Executors.newCachedThreadPool((runnable) -> {
+					Thread thread = new Thread(runnable, "webhook-timer-work");
+					thread.setDaemon(true);
+					return thread;
+				});
+			}
+			executor = handOffs;
+		}
+		executor.execute(task);
+	}
 
 	private static synchronized OkHttpClient getSharedClient() {
 		if (sharedClient == null) {
@@ -1,5 +1,12 @@
 package com.klatunetworks.webhooks.core;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
 import org.slf4j.Logger;
@@ -7,6 +14,8 @@ import org.slf4j.LoggerFactory;
 
 import com.klatunetworks.webhooks.core.store.WebhookStoreService;
 
+import okio.ByteString;
+
 /**
  * Contract for implementing WebhookService classes.
  * 
@@ -36,4 +45,103 @@ public interface WebhookServiceContract {
 		submit(new Webhook(url, json));
 	}
 
+	/**
+	 * Submit a webhook, completing the future with the result on the thread delivering it. Dependent stages which are not async run on that
+	 * thread too, so slow follow-up work should use {@link #submitAsync(Webhook, Executor)}.
+	 */
+	public default CompletableFuture<WebhookResult> submitAsync(Webhook webhook) {
+		CompletableFuture<WebhookResult> future = new CompletableFuture<WebhookResult>();
+		submit(webhook, future::complete);
+		return future;
+	}
+
+	/**
+	 * Submit a webhook, completing the future with the result on the executor, so dependent stages never hold a network thread.
+	 * 
+	 * @param webhook
+	 * @param executor
+	 *          runs the completion, if it rejects the completion runs on the delivering thread
+	 */
+	public default CompletableFuture<WebhookResult> submitAsync(Webhook webhook, Executor executor) {
+		CompletableFuture<WebhookResult> future = new CompletableFuture<WebhookResult>();
+		submit(webhook, (result) -> {
+			try {
+				executor.execute(() -> future.complete(result));
+			} catch (RejectedExecutionException e) {
+				future.complete(result);
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Submit a group of webhooks
+	 * 
+	 * @return a future completed with every result, in the order of the webhooks, once all are done
+	 */
+	public default CompletableFuture<List<WebhookResult>> submitAll(Collection<Webhook> webhooks) {
+		List<CompletableFuture<WebhookResult>> futures = new ArrayList<CompletableFuture<WebhookResult>>(webhooks.size());
+		for (Webhook webhook : webhooks) {
+			futures.add(submitAsync(webhook));
+		}
+		return allOf(futures);
+	}
+
+	/**
+	 * Submit a group of webhooks, completing on the executor
+	 * 
+	 * @return a future completed with every result, in the order of the webhooks, once all are done
+	 */
+	public default CompletableFuture<List<WebhookResult>> submitAll(Collection<Webhook> webhooks, Executor executor) {
+		List<CompletableFuture<WebhookResult>> futures = new ArrayList<CompletableFuture<WebhookResult>>(webhooks.size());
+		for (Webhook webhook : webhooks) {
+			futures.add(submitAsync(webhook, executor));
+		}
+		return allOf(futures);
+	}
+
+	/**
+	 * @return a future completed with the results of every future, in order, once all are done
+	 */
+	public static CompletableFuture<List<WebhookResult>> allOf(List<CompletableFuture<WebhookResult>> futures) {
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).thenApply((done) -> {
+			List<WebhookResult> results = new ArrayList<WebhookResult>(futures.size());
+			for (CompletableFuture<WebhookResult> future : futures) {
+				results.add(future.join());
+			}
+			return results;
+		});
+	}
+
+	/**
+	 * Fan out one event to many urls. The encoded payload is shared by every webhook, so the event is encoded once regardless of the number
+	 * of destinations or attempts.
+	 * 
+	 * @param payload
+	 *          utf-8 encoded json
+	 * @param urls
+	 * @param callback
+	 *          invoked with the result of each url
+	 */
+	public default void submit(ByteString payload, List<String> urls, Consumer<WebhookResult> callback) {
+		for (String url : urls) {
+			submit(new Webhook(url, payload), callback);
+		}
+	}
+
+	public default void submit(ByteString payload, List<String> urls) {
+		for (String url : urls) {
+			submit(new Webhook(url, payload));
+		}
+	}
+
+	/**
+	 * Opt in to batching: webhooks for the same url are sent through this service as JSON arrays.
+	 * 
+	 * @see WebhookBatcher
+	 */
+	public default WebhookBatcher batched(int maxCount, long maxBytes, long linger, TimeUnit unit) {
+		return new WebhookBatcher(this, maxCount, maxBytes, linger, unit);
+	}
+
 }
@@ -0,0 +1,146 @@
+package com.klatunetworks.webhooks.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.squareup.okhttp.Request;
+
+/**
+ * Signs webhooks with an HMAC of their id, a timestamp and the payload, sent as the Webhook-Timestamp and Webhook-Signature headers:
+ *
+ * <pre>
+ * Webhook-Signature: v1,base64(hmac(secret, id + "." + timestamp + "." + payload))
+ * </pre>
+ *
+ * Each thread keeps its own Mac initialised with the secret, and the encoded payload is fed to it without copying, so signing costs one
+ * HMAC pass over the payload. The timestamp is taken when the request is built, so every retry carries a fresh signature receivers can
+ * check against a replay window. Keep one signer per secret.
+ *
+ * @author Dan Simpson
+ *
+ */
+public class WebhookSigner {
+
+	public static final String TIMESTAMP_HEADER = "Webhook-Timestamp";
+	public static final String SIGNATURE_HEADER = "Webhook-Signature";
+
+	public static final String DEFAULT_ALGORITHM = "HmacSHA256";
+
+	private static final String VERSION = "v1,";
+	private static final byte SEPARATOR = '.';
+
+	/**
+	 * A thread's Mac, with a stream over it for writing ByteStrings without a copy
+	 */
+	private static final class Signing extends OutputStream {
+
+		private final Mac mac;
+
+		Signing(Mac mac) {
+			this.mac = mac;
+		}
+
+		@Override
+		public void write(int b) {
+			mac.update((byte) b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			mac.update(b, off, len);
+		}
+	}
+
+	private final SecretKeySpec key;
+	private final ThreadLocal<Signing> signing;
+
+	/**
+	 * Sign with HmacSHA256
+	 *
+	 * @param secret
+	 *          the secret shared with the receiver
+	 */
+	public WebhookSigner(byte[] secret) {
+		this(secret, DEFAULT_ALGORITHM);
+	}
+
+	/**
+	 * @param secret
+	 *          the secret shared with the receiver
+	 * @param algorithm
+	 *          the Mac algorithm, e.g. HmacSHA256
+	 */
+	public WebhookSigner(byte[] secret, String algorithm) {
+		if (secret == null || secret.length == 0) {
+			throw new IllegalArgumentException("A secret is required");
+		}
+		this.key = new SecretKeySpec(secret, algorithm);
+		// Fail at construction rather than on the first delivery
+		newMac();
+		this.signing = ThreadLocal.withInitial(() -> new Signing(newMac()));
+	}
+
+	/**
+	 * Add a signature for the current time to a request for the webhook
+	 *
+	 * @param webhook
+	 * @param builder
+	 *          the request of an attempt
+	 */
+	public void sign(Webhook webhook, Request.Builder builder) {
+		long timestamp = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+		builder.header(TIMESTAMP_HEADER, Long.toString(timestamp));
+		builder.header(SIGNATURE_HEADER, signature(webhook, timestamp));
+	}
+
+	/**
+	 * @param webhook
+	 * @param timestamp
+	 *          unix time in seconds
+	 * @return the signature header value of the webhook at the timestamp
+	 */
+	public String signature(Webhook webhook, long timestamp) {
+		Signing current = signing.get();
+		Mac mac = current.mac;
+		try {
+			write(mac, webhook.getId());
+			mac.update(SEPARATOR);
+			write(mac, Long.toString(timestamp));
+			mac.update(SEPARATOR);
+			webhook.getPayload().write(current);
+			return VERSION + Base64.getEncoder().encodeToString(mac.doFinal());
+		} catch (IOException e) {
+			// The stream only updates the Mac
+			mac.reset();
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return the algorithm of the signatures
+	 */
+	public String getAlgorithm() {
+		return key.getAlgorithm();
+	}
+
+	private static void write(Mac mac, String value) {
+		mac.update(value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private Mac newMac() {
+		try {
+			Mac mac = Mac.getInstance(key.getAlgorithm());
+			mac.init(key);
+			return mac;
+		} catch (GeneralSecurityException e) {
+			throw new IllegalArgumentException("Unable to sign with " + key.getAlgorithm(), e);
+		}
+	}
+}
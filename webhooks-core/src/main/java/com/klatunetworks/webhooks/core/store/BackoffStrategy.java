@@ -0,0 +1,139 @@
+package com.klatunetworks.webhooks.core.store;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Computes the delay before a retry. Strategies are primitive int to long functions, so scheduling a retry does not allocate.
+ * 
+ * @author Dan Simpson
+ *
+ */
+@FunctionalInterface
+public interface BackoffStrategy {
+
+	/**
+	 * @param attempt
+	 *          the number of the attempt being scheduled, starting at 2 for the first retry
+	 * @return the delay in milliseconds, or a value <= 0 to stop retrying
+	 */
+	public long delay(int attempt);
+
+	/**
+	 * Compute a delay with knowledge of the previous delay, for strategies which depend on it. Stores should call this variant.
+	 * 
+	 * @param attempt
+	 *          the number of the attempt being scheduled, starting at 2 for the first retry
+	 * @param previousDelay
+	 *          the delay before the previous attempt in milliseconds, 0 for the first retry
+	 * @return the delay in milliseconds, or a value <= 0 to stop retrying
+	 */
+	public default long delay(int attempt, long previousDelay) {
+		return delay(attempt);
+	}
+
+	/**
+	 * @param maxAttempts
+	 * @return this strategy, stopping after the given number of attempts
+	 */
+	public default BackoffStrategy withMaxAttempts(int maxAttempts) {
+		BackoffStrategy strategy = this;
+		return new BackoffStrategy() {
+			@Override
+			public long delay(int attempt) {
+				return delay(attempt, 0);
+			}
+
+			@Override
+			public long delay(int attempt, long previousDelay) {
+				return attempt > maxAttempts ? -1l : strategy.delay(attempt, previousDelay);
+			}
+		};
+	}
+
+	/**
+	 * Adapt a boxed backoff function
+	 */
+	public static BackoffStrategy of(Function<Integer, Long> backoffFn) {
+		return (n) -> backoffFn.apply(n);
+	}
+
+	/**
+	 * The same delay before every retry
+	 */
+	public static BackoffStrategy constant(long duration, TimeUnit unit) {
+		long millis = unit.toMillis(duration);
+		return (n) -> millis;
+	}
+
+	/**
+	 * A delay growing by duration with each retry
+	 */
+	public static BackoffStrategy linear(long duration, TimeUnit unit) {
+		long millis = unit.toMillis(duration);
+		return (n) -> millis * (n - 1);
+	}
+
+	/**
+	 * A delay of base, doubling with each retry up to max
+	 * 
+	 * @throws IllegalArgumentException
+	 *           if base is under 1ms, whose delay of 0 would stop retrying, or max is below base
+	 */
+	public static BackoffStrategy exponential(long base, long max, TimeUnit unit) {
+		long baseMillis = unit.toMillis(base);
+		long maxMillis = unit.toMillis(max);
+		if (baseMillis < 1 || maxMillis < baseMillis) {
+			throw new IllegalArgumentException("Exponential backoff needs a base of at least 1ms and a max of at least the base");
+		}
+		return (n) -> exponentialCeiling(baseMillis, maxMillis, n);
+	}
+
+	/**
+	 * Full jitter: a uniformly random delay between 1ms and the exponential delay for the attempt. Spreads retries of webhooks which failed
+	 * together across the whole window.
+	 */
+	public static BackoffStrategy fullJitter(long base, long max, TimeUnit unit) {
+		long baseMillis = unit.toMillis(base);
+		long maxMillis = unit.toMillis(max);
+		if (baseMillis < 1 || maxMillis < baseMillis) {
+			throw new IllegalArgumentException("Jitter needs a base of at least 1ms and a max of at least the base");
+		}
+		return (n) -> 1 + ThreadLocalRandom.current().nextLong(exponentialCeiling(baseMillis, maxMillis, n));
+	}
+
+	/**
+	 * Decorrelated jitter: a uniformly random delay between base and three times the previous delay, capped at max.
+	 */
+	public static BackoffStrategy decorrelatedJitter(long base, long max, TimeUnit unit) {
+		long baseMillis = unit.toMillis(base);
+		long maxMillis = unit.toMillis(max);
+		if (baseMillis < 1 || maxMillis < baseMillis) {
+			throw new IllegalArgumentException("Jitter needs a base of at least 1ms and a max of at least the base");
+		}
+		return new BackoffStrategy() {
+			@Override
+			public long delay(int attempt) {
+				return delay(attempt, 0);
+			}
+
+			@Override
+			public long delay(int attempt, long previousDelay) {
+				long upper = Math.min(maxMillis, Math.max(baseMillis, previousDelay) * 3);
+				return upper <= baseMillis ? upper : ThreadLocalRandom.current().nextLong(baseMillis, upper + 1);
+			}
+		};
+	}
+
+	/**
+	 * @return base * 2^(attempt - 2), capped at max without overflowing
+	 */
+	public static long exponentialCeiling(long base, long max, int attempt) {
+		int shift = Math.max(0, attempt - 2);
+		if (shift >= Long.numberOfLeadingZeros(base) - 1) {
+			return max;
+		}
+		return Math.min(max, base << shift);
+	}
+}
@@ -0,0 +1,137 @@
+package com.klatunetworks.webhooks.core.store;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.klatunetworks.webhooks.core.WebhookResult;
+
+/**
+ * A circuit breaker for a single destination host. The breaker opens when the failure rate within a window of requests exceeds the
+ * threshold. While open no requests are allowed. Once the open period passes, a single probe is let through (half-open); its success closes
+ * the breaker and its failure opens it again.
+ * 
+ * @author Dan Simpson
+ *
+ */
+public class CircuitBreaker {
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private final double failureRate;
+	private final int minimumRequests;
+	private final long openMillis;
+
+	private final AtomicReference<State> state = new AtomicReference<State>(State.CLOSED);
+	private final AtomicInteger requests = new AtomicInteger();
+	private final AtomicInteger failures = new AtomicInteger();
+	private final AtomicLong openedAt = new AtomicLong();
+
+	/**
+	 * @param failureRate
+	 *          ratio of failed requests, between 0 and 1, which opens the breaker
+	 * @param minimumRequests
+	 *          number of requests in the window before the failure rate is considered; the window restarts after each evaluation
+	 * @param openDuration
+	 *          how long the breaker stays open before a probe is allowed
+	 * @param unit
+	 */
+	public CircuitBreaker(double failureRate, int minimumRequests, long openDuration, TimeUnit unit) {
+		this.failureRate = failureRate;
+		this.minimumRequests = minimumRequests;
+		this.openMillis = unit.toMillis(openDuration);
+	}
+
+	/**
+	 * @return true if a request may be made, which is the probe when leaving the open state
+	 */
+	public boolean allowRequest() {
+		switch (state.get()) {
+		case CLOSED:
+			return true;
+		case OPEN:
+			return System.currentTimeMillis() - openedAt.get() >= openMillis && state.compareAndSet(State.OPEN, State.HALF_OPEN);
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * @return true if {@link #allowRequest()} would let a request through now, without taking the probe
+	 */
+	public boolean isRequestAllowed() {
+		switch (state.get()) {
+		case CLOSED:
+			return true;
+		case OPEN:
+			return System.currentTimeMillis() - openedAt.get() >= openMillis;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Record the outcome of a request allowed by this breaker
+	 * 
+	 * @param success
+	 */
+	public void record(boolean success) {
+		if (state.get() == State.HALF_OPEN) {
+			if (success) {
+				reset();
+				state.compareAndSet(State.HALF_OPEN, State.CLOSED);
+			} else {
+				open(State.HALF_OPEN);
+			}
+			return;
+		}
+
+		int failed = success ? failures.get() : failures.incrementAndGet();
+		int total = requests.incrementAndGet();
+		if (total >= minimumRequests) {
+			reset();
+			if (failed >= total * failureRate) {
+				open(State.CLOSED);
+			}
+		}
+	}
+
+	/**
+	 * Record the outcome of a webhook result. Errors and 5xx responses count as failures, other responses show the host is alive.
+	 * 
+	 * @param result
+	 */
+	public void record(WebhookResult result) {
+		record(result.getResponse().map(r -> r.code() < 500).orElse(false));
+	}
+
+	private void open(State from) {
+		openedAt.set(System.currentTimeMillis());
+		state.compareAndSet(from, State.OPEN);
+	}
+
+	private void reset() {
+		requests.set(0);
+		failures.set(0);
+	}
+
+	/**
+	 * @return milliseconds until the open breaker lets a probe through, or 0 if it is not open
+	 */
+	public long getRemainingOpenMillis() {
+		if (state.get() != State.OPEN) {
+			return 0;
+		}
+		return Math.max(0, openMillis - (System.currentTimeMillis() - openedAt.get()));
+	}
+
+	/**
+	 * @return the state
+	 */
+	public State getState() {
+		return state.get();
+	}
+}
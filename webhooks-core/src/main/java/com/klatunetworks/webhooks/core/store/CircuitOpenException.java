@@ -0,0 +1,18 @@
+package com.klatunetworks.webhooks.core.store;
+
+import java.io.IOException;
+
+/**
+ * The result error of a webhook which was not attempted because the circuit breaker for its host is open.
+ * 
+ * @author Dan Simpson
+ *
+ */
+public class CircuitOpenException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	public CircuitOpenException(String host) {
+		super("Circuit open for " + host);
+	}
+}
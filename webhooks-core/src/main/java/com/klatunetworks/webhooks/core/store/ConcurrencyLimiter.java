@@ -0,0 +1,158 @@
+package com.klatunetworks.webhooks.core.store;
+
+import java.util.concurrent.TimeUnit;
+
+import com.klatunetworks.webhooks.core.WebhookResult;
+
+/**
+ * An in-flight limit for a single destination host which follows the latency of the host. Samples are gathered over a window of about one
+ * round trip, and the limit is updated once per window, like TCP congestion control, so it reacts to the load it set rather than chasing
+ * responses to an older limit.
+ *
+ * The average latency of a window is compared with a baseline, the lowest latency of the last thousand samples or so: while it stays within
+ * a tolerance of the baseline the limit grows by about its square root, and as the host slows down the limit is scaled by their ratio, down
+ * to half (gradient). A window with a failure which points at an overloaded host, an error, 429 or 5xx response, cuts the limit by a fixed
+ * ratio instead (AIMD). The limit only grows while the host uses at least half of it, so an idle host does not accumulate headroom it never
+ * tested. Renewing the baseline lets a host which became slower for good settle at a new normal.
+ *
+ * @author Dan Simpson
+ *
+ */
+public class ConcurrencyLimiter {
+
+	private static final double TOLERANCE = 1.5;
+	private static final double SMOOTHING = 0.5;
+	private static final double BACKOFF = 0.9;
+	private static final int MIN_SAMPLES = 4;
+	private static final int BASELINE_SAMPLES = 1000;
+
+	private final int minLimit;
+	private final int maxLimit;
+	private final boolean adaptive;
+
+	// Guarded by this
+	private double limit;
+	private double baseline = Double.MAX_VALUE;
+	private double candidate = Double.MAX_VALUE;
+	private int baselineSamples = 0;
+
+	// Current window
+	private long windowStart = System.nanoTime();
+	private long windowNanos = 0;
+	private double sum = 0;
+	private int samples = 0;
+	private int maxInFlight = 0;
+	private boolean overloaded = false;
+
+	private volatile int current;
+
+	/**
+	 * @param initialLimit
+	 *          the limit until samples arrive
+	 * @param minLimit
+	 *          the floor, at least one
+	 * @param maxLimit
+	 *          the ceiling, such as the per host in-flight limit of the service
+	 */
+	public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+		this(initialLimit, minLimit, maxLimit, true);
+	}
+
+	private ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, boolean adaptive) {
+		if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+			throw new IllegalArgumentException("Limits must satisfy 1 <= min <= initial <= max");
+		}
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.adaptive = adaptive;
+		this.limit = initialLimit;
+		this.current = initialLimit;
+	}
+
+	/**
+	 * @param limit
+	 * @return a limiter which stays at the limit
+	 */
+	public static ConcurrencyLimiter fixed(int limit) {
+		return new ConcurrencyLimiter(limit, limit, limit, false);
+	}
+
+	/**
+	 * @return the number of webhooks which may be in flight to the host
+	 */
+	public int getLimit() {
+		return current;
+	}
+
+	/**
+	 * Record the outcome of a request
+	 *
+	 * @param result
+	 * @param inFlight
+	 *          the number of requests to the host in flight when the request completed, including it
+	 */
+	public void record(WebhookResult result, int inFlight) {
+		if (!adaptive) {
+			return;
+		}
+		int code = result.hasResponse() ? result.getResponse().get().code() : 0;
+		record(result.getLatency(), code == 0 || code == 429 || code >= 500, inFlight);
+	}
+
+	/**
+	 * Record a request sample
+	 *
+	 * @param latency
+	 *          milliseconds from submit to completion
+	 * @param overloaded
+	 *          true if the host failed in a way which more load would make worse
+	 * @param inFlight
+	 *          the number of requests to the host in flight when the request completed, including it
+	 */
+	public synchronized void record(long latency, boolean overloaded, int inFlight) {
+		if (!adaptive) {
+			return;
+		}
+		maxInFlight = Math.max(maxInFlight, inFlight);
+		if (overloaded) {
+			this.overloaded = true;
+		} else {
+			double rtt = Math.max(1, latency);
+			sum += rtt;
+			samples++;
+			baseline = Math.min(baseline, rtt);
+			candidate = Math.min(candidate, rtt);
+			if (++baselineSamples == BASELINE_SAMPLES) {
+				baseline = candidate;
+				candidate = Double.MAX_VALUE;
+				baselineSamples = 0;
+			}
+		}
+
+		long now = System.nanoTime();
+		if (now - windowStart < windowNanos || (samples < MIN_SAMPLES && !this.overloaded)) {
+			return;
+		}
+		if (this.overloaded) {
+			update(limit * BACKOFF);
+		} else {
+			double rtt = sum / samples;
+			windowNanos = TimeUnit.MILLISECONDS.toNanos((long) rtt);
+			if (maxInFlight >= limit / 2) {
+				double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * baseline / rtt));
+				double target = limit * gradient + Math.sqrt(limit);
+				update(limit * (1 - SMOOTHING) + target * SMOOTHING);
+			}
+		}
+		windowStart = now;
+		sum = 0;
+		samples = 0;
+		maxInFlight = 0;
+		this.overloaded = false;
+	}
+
+	private void update(double target) {
+		limit = Math.max(minLimit, Math.min(maxLimit, target));
+		current = (int) limit;
+	}
+}
@@ -0,0 +1,91 @@
+package com.klatunetworks.webhooks.core.store;
+
+import com.klatunetworks.webhooks.core.Webhook;
+import com.klatunetworks.webhooks.core.WebhookResult;
+
+/**
+ * A webhook whose retries were exhausted, with when and why it was given up on
+ * 
+ * @author Dan Simpson
+ *
+ */
+public class DeadLetter {
+
+	private final Webhook webhook;
+	private final int attempts;
+	private final long firstAttemptAt;
+	private final long deadAt;
+	private final String reason;
+
+	/**
+	 * @param webhook
+	 * @param attempts
+	 *          the number of attempts made
+	 * @param firstAttemptAt
+	 *          time of the first attempt in milliseconds
+	 * @param deadAt
+	 *          time the webhook was given up on in milliseconds
+	 * @param reason
+	 *          the outcome of the last attempt
+	 */
+	public DeadLetter(Webhook webhook, int attempts, long firstAttemptAt, long deadAt, String reason) {
+		super();
+		this.webhook = webhook;
+		this.attempts = attempts;
+		this.firstAttemptAt = firstAttemptAt;
+		this.deadAt = deadAt;
+		this.reason = reason;
+	}
+
+	/**
+	 * @return the webhook
+	 */
+	public Webhook getWebhook() {
+		return webhook;
+	}
+
+	/**
+	 * @return the host of the webhook
+	 */
+	public String getHost() {
+		return webhook.getHost();
+	}
+
+	/**
+	 * @return the number of attempts made
+	 */
+	public int getAttempts() {
+		return attempts;
+	}
+
+	/**
+	 * @return time of the first attempt in milliseconds
+	 */
+	public long getFirstAttemptAt() {
+		return firstAttemptAt;
+	}
+
+	/**
+	 * @return time the webhook was given up on in milliseconds
+	 */
+	public long getDeadAt() {
+		return deadAt;
+	}
+
+	/**
+	 * @return the outcome of the last attempt, such as "HTTP 503" or the exception
+	 */
+	public String getReason() {
+		return reason;
+	}
+
+	/**
+	 * @return a short description of the outcome of a result
+	 */
+	public static String reason(WebhookResult result) {
+		if (result.hasResponse()) {
+			return "HTTP " + result.getResponse().get().code();
+		}
+		return result.getError().map(Throwable::toString).orElse("unknown");
+	}
+}
@@ -0,0 +1,72 @@
+package com.klatunetworks.webhooks.core.store;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Destination for webhooks whose retries were exhausted, so they can be inspected and replayed once the receiver recovers.
+ * 
+ * @see MemoryDeadLetterSink
+ * @see FileDeadLetterSink
+ * 
+ * @author Dan Simpson
+ *
+ */
+public interface DeadLetterSink {
+
+	/**
+	 * Record an exhausted webhook. Called by the store on the thread applying the last result, so implementations should be quick.
+	 * 
+	 * @param letter
+	 */
+	public void accept(DeadLetter letter);
+
+	/**
+	 * Find dead letters, in the order they were recorded
+	 * 
+	 * @param host
+	 *          the host of the webhooks, or null for any
+	 * @param from
+	 *          earliest time given up on in milliseconds, inclusive
+	 * @param to
+	 *          latest time given up on in milliseconds, exclusive
+	 * @return the matching dead letters
+	 */
+	public List<DeadLetter> query(String host, long from, long to);
+
+	/**
+	 * Add the matching dead letters back to a store, at most perSecond webhooks a second so a replay cannot flood a recovered receiver.
+	 * Blocks until every webhook has been added. Webhooks keep their ids, so a store with a duplicate filter suppresses ones given up on
+	 * within its window.
+	 * 
+	 * @param host
+	 *          the host of the webhooks, or null for any
+	 * @param from
+	 *          earliest time given up on in milliseconds, inclusive
+	 * @param to
+	 *          latest time given up on in milliseconds, exclusive
+	 * @param store
+	 * @param perSecond
+	 *          the maximum rate webhooks are added to the store
+	 * @return the number of webhooks added
+	 * @throws InterruptedException
+	 */
+	public default int replay(String host, long from, long to, WebhookStore store, double perSecond) throws InterruptedException {
+		if (perSecond <= 0) {
+			throw new IllegalArgumentException("Replay rate must be positive");
+		}
+		long interval = (long) (TimeUnit.SECONDS.toNanos(1) / perSecond);
+		long next = System.nanoTime();
+		int replayed = 0;
+		for (DeadLetter letter : query(host, from, to)) {
+			long wait = next - System.nanoTime();
+			if (wait > 0) {
+				TimeUnit.NANOSECONDS.sleep(wait);
+			}
+			store.add(letter.getWebhook());
+			next += interval;
+			replayed++;
+		}
+		return replayed;
+	}
+}
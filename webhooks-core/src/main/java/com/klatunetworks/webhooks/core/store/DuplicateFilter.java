@@ -0,0 +1,117 @@
+package com.klatunetworks.webhooks.core.store;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.klatunetworks.webhooks.core.Webhook;
+
+/**
+ * A bounded set of recently seen webhooks, keyed by url and id, for suppressing resubmissions within a window. The window is split into
+ * time buckets, each a Bloom filter; a webhook is a duplicate if any bucket of the window may contain it, and the oldest bucket is cleared
+ * for reuse as time moves on. Memory is fixed at construction regardless of traffic, 11 to 22 bytes per expected webhook at a 0.1%
+ * false positive rate.
+ *
+ * False positives, a new webhook taken for a duplicate, happen at roughly the given rate while traffic stays within the expected volume.
+ * Concurrent submissions of the same webhook may both pass; stores handle those exactly.
+ *
+ * @author Dan Simpson
+ *
+ */
+public class DuplicateFilter {
+
+	private static final int BUCKETS = 4;
+
+	private final long bucketMillis;
+	private final int mask;
+	private final int hashes;
+	private final AtomicLongArray[] filters = new AtomicLongArray[BUCKETS + 1];
+	private final AtomicLongArray epochs = new AtomicLongArray(BUCKETS + 1);
+
+	/**
+	 * @param window
+	 *          how long a webhook is remembered, at least
+	 * @param unit
+	 * @param expectedPerWindow
+	 *          the number of webhooks expected within a window
+	 * @param falsePositiveRate
+	 *          the acceptable rate of new webhooks taken for duplicates, e.g. 0.001
+	 */
+	public DuplicateFilter(long window, TimeUnit unit, int expectedPerWindow, double falsePositiveRate) {
+		if (window <= 0 || expectedPerWindow <= 0 || falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+			throw new IllegalArgumentException("Window, expected volume and false positive rate must be positive");
+		}
+		this.bucketMillis = Math.max(1, unit.toMillis(window) / BUCKETS);
+
+		// Each bucket is sized for the whole volume so a burst cannot saturate it, and every live bucket is tested, so each gets a share of
+		// the error rate
+		double perBucket = expectedPerWindow;
+		double rate = falsePositiveRate / (BUCKETS + 1);
+		long bits = (long) Math.ceil(-perBucket * Math.log(rate) / (Math.log(2) * Math.log(2)));
+		int size = (int) (Long.highestOneBit(Math.min(Math.max(bits, 64), 1L << 30) - 1) << 1);
+		this.mask = size - 1;
+		this.hashes = (int) Math.min(16, Math.max(1, Math.round(size / perBucket * Math.log(2))));
+		for (int i = 0; i <= BUCKETS; i++) {
+			filters[i] = new AtomicLongArray(size / 64);
+			epochs.set(i, Long.MIN_VALUE);
+		}
+	}
+
+	/**
+	 * Record the webhook as seen
+	 *
+	 * @param webhook
+	 * @return true if the webhook was not seen within the window, false if it may be a duplicate
+	 */
+	public boolean add(Webhook webhook) {
+		long hash = WebhookCodec.hash(webhook);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32) | 1;
+		long epoch = System.currentTimeMillis() / bucketMillis;
+
+		for (int i = 0; i <= BUCKETS; i++) {
+			int slot = (int) ((epoch - i) % (BUCKETS + 1));
+			if (epochs.get(slot) == epoch - i && contains(filters[slot], h1, h2)) {
+				return false;
+			}
+		}
+
+		AtomicLongArray current = rotate(epoch);
+		for (int i = 0; i < hashes; i++) {
+			int bit = (h1 + i * h2) & mask;
+			long word;
+			do {
+				word = current.get(bit >>> 6);
+			} while ((word & (1L << bit)) == 0 && !current.compareAndSet(bit >>> 6, word, word | (1L << bit)));
+		}
+		return true;
+	}
+
+	private boolean contains(AtomicLongArray filter, int h1, int h2) {
+		for (int i = 0; i < hashes; i++) {
+			int bit = (h1 + i * h2) & mask;
+			if ((filter.get(bit >>> 6) & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the filter of the epoch, cleared first if it last held an older epoch
+	 */
+	private AtomicLongArray rotate(long epoch) {
+		int slot = (int) (epoch % (BUCKETS + 1));
+		if (epochs.get(slot) != epoch) {
+			synchronized (this) {
+				if (epochs.get(slot) != epoch) {
+					AtomicLongArray filter = filters[slot];
+					for (int i = 0; i < filter.length(); i++) {
+						filter.set(i, 0);
+					}
+					epochs.set(slot, epoch);
+				}
+			}
+		}
+		return filters[slot];
+	}
+}
@@ -0,0 +1,276 @@
+package com.klatunetworks.webhooks.core.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.klatunetworks.webhooks.core.Webhook;
+
+/**
+ * A DeadLetterSink which appends dead letters to a file. Accepted letters are queued for a writer thread, which appends every queued
+ * letter and then forces the file once, so stores do not wait on the disk and a burst of letters costs one force. A batch which fails to
+ * write is cut off the file again, so later letters follow the last good one.
+ * 
+ * Records are framed as [length][crc32][dead at][first attempt at][attempts][host][reason][webhook]; a torn record at the end of the file,
+ * from a crash mid-append, is truncated on open. Queries scan the file and only decode the webhooks which match.
+ * 
+ * @author Dan Simpson
+ *
+ */
+public class FileDeadLetterSink implements DeadLetterSink, Closeable {
+
+	private static final Logger log = LoggerFactory.getLogger(FileDeadLetterSink.class);
+
+	private static final int FRAME = 8;
+
+	// Queued by close, after the last letter
+	private static final ByteBuffer CLOSE = ByteBuffer.allocate(0);
+
+	private final FileChannel channel;
+	private final BlockingQueue<ByteBuffer> pending = new LinkedBlockingQueue<ByteBuffer>();
+	private final Thread writer;
+	private final AtomicLong accepted = new AtomicLong();
+
+	// Orders letters before the close marker, apart from the lock the writer holds on the file
+	private final Object queueLock = new Object();
+	private boolean closed = false;
+
+	// Guarded by this
+	private long end;
+	private long processed = 0;
+	private long lost = 0;
+
+	/**
+	 * Open the file, creating it if missing
+	 * 
+	 * @param path
+	 * @throws IOException
+	 */
+	public FileDeadLetterSink(Path path) throws IOException {
+		this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		this.end = 0;
+		ByteBuffer record;
+		while ((record = read(end)) != null) {
+			end += FRAME + record.capacity();
+		}
+		if (end < channel.size()) {
+			log.warn("Truncating {} bytes of torn dead letters from {}", channel.size() - end, path);
+			channel.truncate(end);
+		}
+		this.writer = new Thread(this::write, "dead-letter-writer");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/**
+	 * Queue the letter for the writer thread. It is on disk once a later {@link #flush()} returns.
+	 */
+	@Override
+	public void accept(DeadLetter letter) {
+		byte[] host = letter.getHost().getBytes(StandardCharsets.UTF_8);
+		byte[] reason = letter.getReason().getBytes(StandardCharsets.UTF_8);
+		byte[] webhook = WebhookCodec.encode(letter.getWebhook());
+		int length = 8 + 8 + 4 + 4 + host.length + 4 + reason.length + webhook.length;
+
+		ByteBuffer record = ByteBuffer.allocate(FRAME + length);
+		record.position(FRAME);
+		record.putLong(letter.getDeadAt());
+		record.putLong(letter.getFirstAttemptAt());
+		record.putInt(letter.getAttempts());
+		record.putInt(host.length).put(host);
+		record.putInt(reason.length).put(reason);
+		record.put(webhook);
+
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), FRAME, length);
+		record.putInt(0, length);
+		record.putInt(4, (int) crc.getValue());
+		record.flip();
+		synchronized (queueLock) {
+			if (closed) {
+				throw new IllegalStateException("Dead letter sink is closed");
+			}
+			accepted.incrementAndGet();
+			pending.add(record);
+		}
+	}
+
+	private void write() {
+		List<ByteBuffer> batch = new ArrayList<ByteBuffer>();
+		while (true) {
+			try {
+				batch.add(pending.take());
+			} catch (InterruptedException e) {
+				return;
+			}
+			pending.drainTo(batch);
+			boolean close = batch.removeIf((record) -> record == CLOSE);
+			synchronized (this) {
+				long position = end;
+				try {
+					for (ByteBuffer record : batch) {
+						while (record.hasRemaining()) {
+							position += channel.write(record, position);
+						}
+					}
+					channel.force(false);
+					end = position;
+				} catch (IOException e) {
+					log.error("Failed to write {} dead letters", batch.size(), e);
+					lost += batch.size();
+					truncate();
+				}
+				processed += batch.size();
+				notifyAll();
+			}
+			batch.clear();
+			if (close) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Cut a failed batch off the file. If that fails too, the next batch is still written from the last good letter and overwrites it.
+	 */
+	private void truncate() {
+		try {
+			if (channel.size() > end) {
+				channel.truncate(end);
+			}
+		} catch (IOException e) {
+			log.warn("Failed to truncate dead letters after a failed write", e);
+		}
+	}
+
+	/**
+	 * Wait until the letters accepted so far are written and forced to disk
+	 * 
+	 * @throws IOException
+	 *           if any letter accepted by this sink could not be written
+	 * @throws InterruptedException
+	 */
+	public synchronized void flush() throws IOException, InterruptedException {
+		long target = accepted.get();
+		while (processed < target) {
+			wait();
+		}
+		if (lost > 0) {
+			throw new IOException(lost + " dead letters could not be written");
+		}
+	}
+
+	/**
+	 * Letters still queued for the writer are flushed first
+	 */
+	@Override
+	public synchronized List<DeadLetter> query(String host, long from, long to) {
+		try {
+			flush();
+		} catch (IOException e) {
+			// The letters which were written can still be queried
+			log.warn("Querying dead letters after a failed write", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted flushing dead letters", e);
+		}
+		List<DeadLetter> matches = new ArrayList<DeadLetter>();
+		long position = 0;
+		try {
+			ByteBuffer record;
+			while (position < end && (record = read(position)) != null) {
+				position += FRAME + record.capacity();
+				long deadAt = record.getLong();
+				long firstAttemptAt = record.getLong();
+				int attempts = record.getInt();
+				String letterHost = string(record);
+				if (deadAt < from || deadAt >= to || (host != null && !host.equals(letterHost))) {
+					continue;
+				}
+				String reason = string(record);
+				Webhook webhook = WebhookCodec.decode(record);
+				matches.add(new DeadLetter(webhook, attempts, firstAttemptAt, deadAt, reason));
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return matches;
+	}
+
+	/**
+	 * @return the body of the record at the position, or null if there is no complete, valid record
+	 */
+	private ByteBuffer read(long position) throws IOException {
+		ByteBuffer frame = ByteBuffer.allocate(FRAME);
+		if (!readFully(frame, position)) {
+			return null;
+		}
+		int length = frame.getInt(0);
+		if (length <= 0 || position + FRAME + length > channel.size()) {
+			return null;
+		}
+		ByteBuffer record = ByteBuffer.allocate(length);
+		if (!readFully(record, position + FRAME)) {
+			return null;
+		}
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), 0, length);
+		if ((int) crc.getValue() != frame.getInt(4)) {
+			return null;
+		}
+		record.flip();
+		return record;
+	}
+
+	private boolean readFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position + buffer.position());
+			if (read < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static String string(ByteBuffer buffer) {
+		byte[] value = new byte[buffer.getInt()];
+		buffer.get(value);
+		return new String(value, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Write the queued letters and close the file
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (queueLock) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			pending.add(CLOSE);
+		}
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package com.klatunetworks.webhooks.core.store;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.klatunetworks.webhooks.core.Webhook;
+
+/**
+ * Backlog and in-flight count of a single destination host. The backlog is only touched by the dispatching thread, the counters may be read
+ * from any thread.
+ * 
+ * @author Dan Simpson
+ *
+ */
+final class HostQueue {
+
+	private final String host;
+	private final CircuitBreaker breaker;
+	private final RateLimiter limiter;
+	private final ConcurrencyLimiter concurrency;
+	private final ArrayDeque<Webhook> backlog = new ArrayDeque<Webhook>();
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private volatile int depth = 0;
+
+	public HostQueue(String host, CircuitBreaker breaker, RateLimiter limiter, ConcurrencyLimiter concurrency) {
+		this.host = host;
+		this.breaker = breaker;
+		this.limiter = limiter;
+		this.concurrency = concurrency;
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public void add(Webhook webhook) {
+		backlog.add(webhook);
+		depth++;
+	}
+
+	public Webhook poll() {
+		Webhook webhook = backlog.poll();
+		if (webhook != null) {
+			depth--;
+		}
+		return webhook;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	public AtomicInteger getInFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * @return the circuit breaker, or null if the host has none
+	 */
+	public CircuitBreaker getBreaker() {
+		return breaker;
+	}
+
+	/**
+	 * @return the rate limiter of the host
+	 */
+	public RateLimiter getLimiter() {
+		return limiter;
+	}
+
+	/**
+	 * @return the in-flight limiter of the host
+	 */
+	public ConcurrencyLimiter getConcurrency() {
+		return concurrency;
+	}
+
+	/**
+	 * @return true if another webhook may be in flight to the host
+	 */
+	public boolean hasCapacity() {
+		return inFlight.get() < concurrency.getLimit();
+	}
+
+	/**
+	 * @return true if the breaker is open or waiting on its probe
+	 */
+	public boolean isTripped() {
+		return breaker != null && breaker.getState() != CircuitBreaker.State.CLOSED;
+	}
+
+	/**
+	 * @return true if the host has nothing queued or in-flight and no breaker or learned rate state worth keeping
+	 */
+	public boolean isIdle() {
+		return depth == 0 && inFlight.get() == 0 && !isTripped() && !limiter.isThrottled();
+	}
+}
@@ -0,0 +1,60 @@
+package com.klatunetworks.webhooks.core.store;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A DeadLetterSink which keeps the most recent dead letters in memory, dropping the oldest beyond its capacity
+ * 
+ * @author Dan Simpson
+ *
+ */
+public class MemoryDeadLetterSink implements DeadLetterSink {
+
+	public static final int DEFAULT_CAPACITY = 10000;
+
+	private final ArrayDeque<DeadLetter> letters = new ArrayDeque<DeadLetter>();
+	private final int capacity;
+
+	public MemoryDeadLetterSink() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity
+	 *          the maximum number of dead letters kept
+	 */
+	public MemoryDeadLetterSink(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Capacity must be positive");
+		}
+		this.capacity = capacity;
+	}
+
+	@Override
+	public synchronized void accept(DeadLetter letter) {
+		if (letters.size() == capacity) {
+			letters.pollFirst();
+		}
+		letters.addLast(letter);
+	}
+
+	@Override
+	public synchronized List<DeadLetter> query(String host, long from, long to) {
+		List<DeadLetter> matches = new ArrayList<DeadLetter>();
+		for (DeadLetter letter : letters) {
+			if (letter.getDeadAt() >= from && letter.getDeadAt() < to && (host == null || host.equals(letter.getHost()))) {
+				matches.add(letter);
+			}
+		}
+		return matches;
+	}
+
+	/**
+	 * @return the number of dead letters kept
+	 */
+	public synchronized int size() {
+		return letters.size();
+	}
+}
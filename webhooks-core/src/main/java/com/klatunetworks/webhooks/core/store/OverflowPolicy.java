@@ -0,0 +1,30 @@
+package com.klatunetworks.webhooks.core.store;
+
+/**
+ * Behavior of a {@link WebhookOutbox} when it is offered a webhook while full.
+ * 
+ * @author Dan Simpson
+ *
+ */
+public enum OverflowPolicy {
+
+	/**
+	 * Wait for the consumer to make room
+	 */
+	BLOCK,
+
+	/**
+	 * Refuse the webhook, offer returns false
+	 */
+	REJECT,
+
+	/**
+	 * Evict the oldest queued webhook to make room, and hand it to the drop listener
+	 */
+	DROP_OLDEST,
+
+	/**
+	 * Write the webhook to a spill file, it is moved back into the queue as room frees up
+	 */
+	SPILL
+}
@@ -0,0 +1,193 @@
+package com.klatunetworks.webhooks.core.store;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free token bucket for the requests to one host, kept as the theoretical arrival time of the next request (GCRA): a request is
+ * allowed if it would not arrive more than a burst of intervals early, and each allowed request pushes the time on by one interval.
+ *
+ * The rate adapts to the receiver: a 429 halves it, at most once a second since the requests in flight are usually throttled together, and
+ * a Retry-After pauses the bucket until the given time. Each success raises the rate by 1/64 back toward the configured ceiling. An
+ * unlimited bucket only becomes limited once it is throttled, starting from half the rate it was sending at over the last second or two,
+ * and becomes unlimited again after a minute without a 429. A bucket counts as throttled only while paused or within that minute, so the
+ * host may then be forgotten.
+ *
+ * @author Dan Simpson
+ *
+ */
+public class RateLimiter {
+
+	/**
+	 * Floor of a learned rate, in requests per second
+	 */
+	public static final double MIN_RATE = 0.1;
+
+	private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+	private static final long RECOVERY = TimeUnit.MINUTES.toNanos(1);
+
+	private final double ceiling;
+	private final int burst;
+	private final AtomicLong rate;
+	private final AtomicLong next = new AtomicLong(Long.MIN_VALUE);
+	// Acquisitions in the current one second window, and in the one before it or -1 if that saw none
+	private final LongAdder acquired = new LongAdder();
+	private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+	private volatile long previous = -1;
+	private final AtomicLong cut = new AtomicLong(Long.MIN_VALUE);
+	private volatile long pausedUntil = System.nanoTime();
+
+	/**
+	 * @param perSecond
+	 *          the maximum requests a second, or infinity for no limit until throttled
+	 * @param burst
+	 *          the number of requests which may be sent at once after a quiet period
+	 */
+	public RateLimiter(double perSecond, int burst) {
+		if (perSecond <= 0 || burst < 1) {
+			throw new IllegalArgumentException("Rate and burst must be positive");
+		}
+		this.ceiling = perSecond;
+		this.burst = burst;
+		this.rate = new AtomicLong(Double.doubleToLongBits(perSecond));
+	}
+
+	/**
+	 * @return a limiter with no limit until the receiver throttles
+	 */
+	public static RateLimiter unlimited() {
+		return new RateLimiter(Double.POSITIVE_INFINITY, 1);
+	}
+
+	/**
+	 * Take a token if one is available
+	 *
+	 * @return true if a request may be sent now
+	 */
+	public boolean tryAcquire() {
+		long now = System.nanoTime();
+		rotate(now);
+		long interval = interval(getRate());
+		long tolerance = interval * (burst - 1);
+		while (true) {
+			long current = next.get();
+			boolean idle = current == Long.MIN_VALUE || current - now < 0;
+			if (!idle && current - now > tolerance) {
+				return false;
+			}
+			// Unlimited and not paused, there is no arrival time to move on
+			if (interval == 0 && idle) {
+				acquired.increment();
+				return true;
+			}
+			if (next.compareAndSet(current, (idle ? now : current) + interval)) {
+				acquired.increment();
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * The receiver answered 429. Halve the rate, from the observed rate if the limiter was unlimited, and pause for the Retry-After.
+	 *
+	 * @param retryAfter
+	 *          milliseconds to pause, or <= 0 for none
+	 */
+	public void throttled(long retryAfter) {
+		pause(retryAfter);
+		long now = System.nanoTime();
+		long last = cut.get();
+		if ((last != Long.MIN_VALUE && now - last < SECOND) || !cut.compareAndSet(last, now)) {
+			return;
+		}
+		double observed = observed(now);
+		double current;
+		double reduced;
+		do {
+			current = getRate();
+			reduced = Math.max(MIN_RATE, Math.min(current, observed) / 2);
+		} while (!rate.compareAndSet(Double.doubleToLongBits(current), Double.doubleToLongBits(reduced)));
+	}
+
+	/**
+	 * Send nothing for the given time, such as for a Retry-After
+	 *
+	 * @param millis
+	 */
+	public void pause(long millis) {
+		if (millis <= 0) {
+			return;
+		}
+		long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+		pausedUntil = until;
+		long current;
+		do {
+			current = next.get();
+			if (current != Long.MIN_VALUE && current - until >= 0) {
+				return;
+			}
+		} while (!next.compareAndSet(current, until));
+	}
+
+	/**
+	 * The receiver accepted a request, raise a throttled rate toward the ceiling
+	 */
+	public void succeeded() {
+		double current = getRate();
+		if (current < ceiling) {
+			double raised = Math.min(ceiling, current + current / 64);
+			if (Double.isInfinite(ceiling) && !recovering(System.nanoTime())) {
+				// A learned rate never climbs back to infinity on its own
+				raised = ceiling;
+			}
+			rate.compareAndSet(Double.doubleToLongBits(current), Double.doubleToLongBits(raised));
+		}
+	}
+
+	/**
+	 * @return true if the limiter is paused, or its rate was lowered by a 429 within the last minute
+	 */
+	public boolean isThrottled() {
+		long now = System.nanoTime();
+		return pausedUntil - now > 0 || (getRate() < ceiling && recovering(now));
+	}
+
+	/**
+	 * @return the current rate in requests a second, infinite if unlimited
+	 */
+	public double getRate() {
+		return Double.longBitsToDouble(rate.get());
+	}
+
+	private boolean recovering(long now) {
+		long last = cut.get();
+		return last != Long.MIN_VALUE && now - last < RECOVERY;
+	}
+
+	/**
+	 * Start a new window once the current one is a second old
+	 */
+	private void rotate(long now) {
+		long start = windowStart.get();
+		if (now - start >= SECOND && windowStart.compareAndSet(start, now)) {
+			long count = acquired.sumThenReset();
+			// Counts of a window which ended long ago say nothing about the current rate
+			previous = now - start < 2 * SECOND ? count : -1;
+		}
+	}
+
+	/**
+	 * @return requests a second over the current window and the one before it
+	 */
+	private double observed(long now) {
+		rotate(now);
+		long before = previous;
+		long span = now - windowStart.get() + (before < 0 ? 0 : SECOND);
+		return (acquired.sum() + Math.max(0, before)) * (double) SECOND / Math.max(TimeUnit.MILLISECONDS.toNanos(1), span);
+	}
+
+	private static long interval(double rate) {
+		return Double.isInfinite(rate) ? 0 : (long) (SECOND / rate);
+	}
+}
@@ -0,0 +1,127 @@
+package com.klatunetworks.webhooks.core.store;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.klatunetworks.webhooks.core.Webhook;
+import com.klatunetworks.webhooks.core.WebhookHeaders;
+
+import okio.ByteString;
+
+/**
+ * Binary encoding of webhooks for stores which keep them outside of the heap (log segments, spill files).
+ * 
+ * @author Dan Simpson
+ *
+ */
+final class WebhookCodec {
+
+	private WebhookCodec() {
+	}
+
+	/**
+	 * Encode the id, url, json and headers of a webhook
+	 * 
+	 * @param webhook
+	 * @return the encoded bytes
+	 */
+	public static byte[] encode(Webhook webhook) {
+		byte[] id = bytes(webhook.getId());
+		byte[] url = bytes(webhook.getUrl());
+		byte[] json = webhook.getPayload().toByteArray();
+		Map<String, String> headers = webhook.getHeaders();
+
+		byte[][] pairs = new byte[headers.size() * 2][];
+		int size = 4 + id.length + 4 + url.length + 4 + json.length + 4;
+		int i = 0;
+		for (Map.Entry<String, String> header : headers.entrySet()) {
+			pairs[i] = bytes(header.getKey());
+			pairs[i + 1] = bytes(header.getValue());
+			size += 8 + pairs[i].length + pairs[i + 1].length;
+			i += 2;
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		put(buffer, id);
+		put(buffer, url);
+		put(buffer, json);
+		buffer.putInt(headers.size());
+		for (byte[] pair : pairs) {
+			put(buffer, pair);
+		}
+		return buffer.array();
+	}
+
+	/**
+	 * Decode a webhook written by {@link #encode(Webhook)}, advancing the buffer position
+	 * 
+	 * @param buffer
+	 * @return the webhook
+	 */
+	public static Webhook decode(ByteBuffer buffer) {
+		String id = string(buffer);
+		String url = string(buffer);
+		byte[] json = new byte[buffer.getInt()];
+		buffer.get(json);
+		int count = buffer.getInt();
+		Map<String, String> headers = new HashMap<String, String>(count * 2);
+		for (int i = 0; i < count; i++) {
+			headers.put(string(buffer), string(buffer));
+		}
+		// Stored webhooks mostly carry the same few header sets, share them rather than a map each
+		return new Webhook(id, url, ByteString.of(json), WebhookHeaders.intern(headers));
+	}
+
+	/**
+	 * Compare the id and url of an encoded webhook with a webhook, without decoding the payload
+	 * 
+	 * @param encoded
+	 *          bytes written by {@link #encode(Webhook)}
+	 * @param webhook
+	 * @return true if the encoded webhook equals the webhook
+	 */
+	public static boolean matches(byte[] encoded, Webhook webhook) {
+		ByteBuffer buffer = ByteBuffer.wrap(encoded);
+		return string(buffer).equals(webhook.getId()) && string(buffer).equals(webhook.getUrl());
+	}
+
+	/**
+	 * 64 bit FNV-1a of the id and url of a webhook, the fields of its equality, with a final mix so both halves are usable as hashes
+	 */
+	public static long hash(Webhook webhook) {
+		long hash = 0xcbf29ce484222325L;
+		hash = fnv(hash, webhook.getId());
+		hash = fnv(hash ^ 0xff, webhook.getUrl());
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	private static long fnv(long hash, String value) {
+		if (value != null) {
+			for (int i = 0; i < value.length(); i++) {
+				hash ^= value.charAt(i);
+				hash *= 0x100000001b3L;
+			}
+		}
+		return hash;
+	}
+
+	private static byte[] bytes(String value) {
+		return value.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static void put(ByteBuffer buffer, byte[] value) {
+		buffer.putInt(value.length);
+		buffer.put(value);
+	}
+
+	private static String string(ByteBuffer buffer) {
+		byte[] value = new byte[buffer.getInt()];
+		buffer.get(value);
+		return new String(value, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,433 @@
+package com.klatunetworks.webhooks.core.store;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.klatunetworks.webhooks.core.Webhook;
+import com.klatunetworks.webhooks.core.WebhookResult;
+
+/**
+ * A WebhookStore with the scheduling of {@link WebhookMemoryStore}, laid out for millions of parked retries. Each webhook occupies a slot:
+ * its retry metadata lives in parallel primitive arrays indexed by the slot and the webhook itself is encoded into one byte array. Slots
+ * are found by a primitive open addressing index on the hash of the url and id, and scheduled in a binary heap of slot numbers, so a parked
+ * webhook costs a byte array and a few array cells rather than a graph of objects.
+ *
+ * Webhooks are decoded when they are due and only the ones out for delivery are held as objects. All operations take the store lock, so
+ * this store trades some concurrency for footprint.
+ *
+ * @author Dan Simpson
+ *
+ */
+public class WebhookCompactStore implements WebhookStore, Runnable {
+
+	private static final Logger log = LoggerFactory.getLogger(WebhookCompactStore.class);
+
+	private static final byte PENDING = 0;
+	private static final byte ENQUEUED = 1;
+	private static final byte IN_FLIGHT = 2;
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private final BackoffStrategy backoffFn;
+	private final WebhookOutbox outbox;
+
+	// Slot columns
+	private byte[][] records;
+	private long[] hashes;
+	private long[] firstAttemptAt;
+	private long[] nextAttemptAt;
+	private long[] lastDelay;
+	private int[] attempts;
+	private byte[] states;
+
+	// Released slots, reused before the high water mark grows
+	private int[] free;
+	private int freeCount = 0;
+	private int next = 0;
+	private int size = 0;
+
+	// Open addressing index of slot + 1, 0 is empty
+	private int[] index;
+
+	// Min-heap of pending slots by next attempt
+	private int[] heap;
+	private int heapSize = 0;
+
+	// Webhooks out for delivery, by their slot
+	private final Map<Webhook, Integer> outstanding = new HashMap<Webhook, Integer>();
+
+	private int capacity = Integer.MAX_VALUE;
+	private long suppressed = 0;
+	private volatile DeadLetterSink deadLetters;
+
+	public WebhookCompactStore(BackoffStrategy backoffFn) {
+		this(backoffFn, new WebhookOutbox());
+	}
+
+	/**
+	 * @param backoffFn
+	 * @param outbox
+	 *          the outbox due webhooks are flushed to
+	 */
+	public WebhookCompactStore(BackoffStrategy backoffFn, WebhookOutbox outbox) {
+		this.backoffFn = backoffFn;
+		this.outbox = outbox;
+		this.outbox.setDropListener(this::dropped);
+		allocate(INITIAL_CAPACITY);
+		this.index = new int[INITIAL_CAPACITY * 2];
+	}
+
+	@Override
+	public BlockingQueue<Webhook> getQueue() {
+		return outbox.getQueue();
+	}
+
+	/**
+	 * @return the outbox
+	 */
+	public WebhookOutbox getOutbox() {
+		return outbox;
+	}
+
+	private void dropped(Webhook webhook) {
+		WebhookResult result = new WebhookResult(webhook);
+		result.setError(new RejectedExecutionException("Dropped from a full outbox"));
+		update(result);
+	}
+
+	/**
+	 * Bound the number of webhooks in the store, delivered and exhausted webhooks make room
+	 * 
+	 * @param capacity
+	 *          the maximum number of webhooks, unbounded by default
+	 */
+	public synchronized void setCapacity(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Capacity must be positive");
+		}
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Add a webhook, unless it equals one in the store
+	 * 
+	 * @throws RejectedExecutionException
+	 *           if the store is at its capacity
+	 */
+	@Override
+	public synchronized void add(Webhook webhook) {
+		if (!offer(webhook)) {
+			throw new RejectedExecutionException("Store is at its capacity of " + capacity + " webhooks");
+		}
+	}
+
+	/**
+	 * Add a webhook unless the store is at its capacity. Duplicates are suppressed as by {@link #add(Webhook)} and count as added.
+	 */
+	@Override
+	public synchronized boolean offer(Webhook webhook) {
+		long hash = WebhookCodec.hash(webhook);
+		if (find(webhook, hash) >= 0) {
+			suppressed++;
+			log.debug("Suppressed duplicate webhook {} to {}", webhook.getId(), webhook.getUrl());
+			return true;
+		}
+		if (size >= capacity) {
+			return false;
+		}
+
+		int slot = freeCount > 0 ? free[--freeCount] : next++;
+		if (slot == records.length) {
+			allocate(records.length * 2);
+		}
+		long now = System.currentTimeMillis();
+		records[slot] = WebhookCodec.encode(webhook);
+		hashes[slot] = hash;
+		firstAttemptAt[slot] = now;
+		nextAttemptAt[slot] = now;
+		lastDelay[slot] = 0;
+		attempts[slot] = 0;
+		states[slot] = PENDING;
+		size++;
+		if (size * 2 > index.length) {
+			rehash(index.length * 2);
+		}
+		insert(slot, hash);
+		push(slot);
+		return true;
+	}
+
+	@Override
+	public synchronized void dispatched(Webhook webhook) {
+		Integer slot = outstanding.get(webhook);
+		if (slot != null && states[slot] == ENQUEUED) {
+			states[slot] = IN_FLIGHT;
+		}
+	}
+
+	@Override
+	public synchronized void release(Webhook webhook) {
+		Integer slot = outstanding.get(webhook);
+		if (slot != null && states[slot] == ENQUEUED) {
+			outstanding.remove(webhook);
+			rejected(slot);
+		}
+	}
+
+	@Override
+	public synchronized void release(Webhook webhook, long delay, TimeUnit unit) {
+		Integer slot = outstanding.get(webhook);
+		if (slot != null && states[slot] == ENQUEUED) {
+			outstanding.remove(webhook);
+			nextAttemptAt[slot] = System.currentTimeMillis() + unit.toMillis(delay);
+			rejected(slot);
+		}
+	}
+
+	@Override
+	public void update(WebhookResult result) {
+		DeadLetter letter = apply(result);
+		DeadLetterSink sink = deadLetters;
+		if (letter != null && sink != null) {
+			try {
+				sink.accept(letter);
+			} catch (RuntimeException e) {
+				log.error("Failed to record dead letter {}", letter.getWebhook().getId(), e);
+			}
+		}
+	}
+
+	/**
+	 * @return the dead letter of an exhausted webhook, recorded by the caller outside of the lock, or null
+	 */
+	private synchronized DeadLetter apply(WebhookResult result) {
+		Webhook webhook = result.getWebhook();
+		Integer boxed = outstanding.remove(webhook);
+		if (boxed == null) {
+			return null;
+		}
+		int slot = boxed;
+
+		if (result.isSuccessful()) {
+			if (attempts[slot] > 1) {
+				log.info("Retry succeeded after {} attempts and {} seconds", attempts[slot], numSeconds(slot));
+			}
+			remove(slot);
+			return null;
+		}
+
+		long delay = backoffFn.delay(attempts[slot] + 1, lastDelay[slot]);
+		long retryAfter = result.getRetryAfter();
+		if (delay > 0 && retryAfter > delay) {
+			delay = retryAfter;
+		}
+		if (delay <= 0) {
+			log.warn("Retry failed after {} attempts and {} seconds. Purging.", attempts[slot], numSeconds(slot));
+			DeadLetter letter = new DeadLetter(webhook, attempts[slot], firstAttemptAt[slot], System.currentTimeMillis(),
+					DeadLetter.reason(result));
+			remove(slot);
+			return letter;
+		} else {
+			long now = System.currentTimeMillis();
+			lastDelay[slot] = delay;
+			nextAttemptAt[slot] = delay > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + delay;
+			states[slot] = PENDING;
+			push(slot);
+		}
+		return null;
+	}
+
+	/**
+	 * Flush the ready-to-retry Webhooks to the queue for the service to consume. The outbox is offered outside of the lock.
+	 */
+	@Override
+	public void run() {
+		Webhook webhook;
+		while ((webhook = poll()) != null) {
+			if (!outbox.offer(webhook)) {
+				// Outbox is full, try again next run
+				synchronized (this) {
+					Integer slot = outstanding.remove(webhook);
+					if (slot != null) {
+						rejected(slot);
+					}
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return the next due webhook, decoded and marked enqueued, or null
+	 */
+	private synchronized Webhook poll() {
+		if (heapSize == 0 || nextAttemptAt[heap[0]] > System.currentTimeMillis()) {
+			return null;
+		}
+		int slot = pop();
+		Webhook webhook = WebhookCodec.decode(ByteBuffer.wrap(records[slot]));
+		states[slot] = ENQUEUED;
+		attempts[slot]++;
+		outstanding.put(webhook, slot);
+		return webhook;
+	}
+
+	private long numSeconds(int slot) {
+		return TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - firstAttemptAt[slot]);
+	}
+
+	private void rejected(int slot) {
+		states[slot] = PENDING;
+		attempts[slot]--;
+		push(slot);
+	}
+
+	public synchronized int getDelayedWebhooks() {
+		return size;
+	}
+
+	/**
+	 * @return the number of webhooks waiting in the schedule for their next attempt
+	 */
+	public synchronized int getScheduledWebhooks() {
+		return heapSize;
+	}
+
+	/**
+	 * Record webhooks whose retries are exhausted in the sink, instead of only logging them. The sink is called outside of the store lock.
+	 * 
+	 * @param deadLetters
+	 *          the sink, or null to discard exhausted webhooks
+	 */
+	public void setDeadLetterSink(DeadLetterSink deadLetters) {
+		this.deadLetters = deadLetters;
+	}
+
+	/**
+	 * @return the number of submissions suppressed as duplicates
+	 */
+	public synchronized long getSuppressedWebhooks() {
+		return suppressed;
+	}
+
+	private void allocate(int capacity) {
+		int previous = records == null ? 0 : records.length;
+		records = records == null ? new byte[capacity][] : Arrays.copyOf(records, capacity);
+		hashes = grow(hashes, capacity);
+		firstAttemptAt = grow(firstAttemptAt, capacity);
+		nextAttemptAt = grow(nextAttemptAt, capacity);
+		lastDelay = grow(lastDelay, capacity);
+		attempts = attempts == null ? new int[capacity] : Arrays.copyOf(attempts, capacity);
+		states = states == null ? new byte[capacity] : Arrays.copyOf(states, capacity);
+		free = free == null ? new int[capacity] : Arrays.copyOf(free, capacity);
+		heap = heap == null ? new int[capacity] : Arrays.copyOf(heap, capacity);
+		if (previous > 0) {
+			log.debug("Grew compact store from {} to {} slots", previous, capacity);
+		}
+	}
+
+	private static long[] grow(long[] column, int capacity) {
+		return column == null ? new long[capacity] : Arrays.copyOf(column, capacity);
+	}
+
+	private void remove(int slot) {
+		delete(slot);
+		records[slot] = null;
+		free[freeCount++] = slot;
+		size--;
+	}
+
+	// Index, linear probing with backward shift deletion
+
+	private int find(Webhook webhook, long hash) {
+		int mask = index.length - 1;
+		for (int i = (int) hash & mask; index[i] != 0; i = (i + 1) & mask) {
+			int slot = index[i] - 1;
+			if (hashes[slot] == hash && WebhookCodec.matches(records[slot], webhook)) {
+				return slot;
+			}
+		}
+		return -1;
+	}
+
+	private void insert(int slot, long hash) {
+		int mask = index.length - 1;
+		int i = (int) hash & mask;
+		while (index[i] != 0) {
+			i = (i + 1) & mask;
+		}
+		index[i] = slot + 1;
+	}
+
+	private void delete(int slot) {
+		int mask = index.length - 1;
+		int i = (int) hashes[slot] & mask;
+		while (index[i] != slot + 1) {
+			i = (i + 1) & mask;
+		}
+		// Shift back later entries of the run which would otherwise become unreachable
+		for (int j = (i + 1) & mask; index[j] != 0; j = (j + 1) & mask) {
+			int home = (int) hashes[index[j] - 1] & mask;
+			if (((j - home) & mask) >= ((j - i) & mask)) {
+				index[i] = index[j];
+				i = j;
+			}
+		}
+		index[i] = 0;
+	}
+
+	private void rehash(int length) {
+		int[] previous = index;
+		index = new int[length];
+		for (int entry : previous) {
+			if (entry != 0) {
+				insert(entry - 1, hashes[entry - 1]);
+			}
+		}
+	}
+
+	// Schedule, a binary min-heap of slots by next attempt
+
+	private void push(int slot) {
+		int i = heapSize++;
+		long at = nextAttemptAt[slot];
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (nextAttemptAt[heap[parent]] <= at) {
+				break;
+			}
+			heap[i] = heap[parent];
+			i = parent;
+		}
+		heap[i] = slot;
+	}
+
+	private int pop() {
+		int top = heap[0];
+		int last = heap[--heapSize];
+		long at = nextAttemptAt[last];
+		int i = 0;
+		int half = heapSize >>> 1;
+		while (i < half) {
+			int child = 2 * i + 1;
+			if (child + 1 < heapSize && nextAttemptAt[heap[child + 1]] < nextAttemptAt[heap[child]]) {
+				child++;
+			}
+			if (at <= nextAttemptAt[heap[child]]) {
+				break;
+			}
+			heap[i] = heap[child];
+			i = child;
+		}
+		heap[i] = last;
+		return top;
+	}
+}
@@ -0,0 +1,417 @@
+package com.klatunetworks.webhooks.core.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.klatunetworks.webhooks.core.Webhook;
+
+/**
+ * A WebhookMemoryStore which survives restarts by appending every add, reschedule and ack to a write-ahead log of memory-mapped, fixed-size
+ * segment files. The log is replayed on creation to rebuild the schedule.
+ * 
+ * Records reach the page cache as soon as they are appended. They are forced to the device in groups on each run(), so the tick interval is
+ * the window of records which may be lost on a power failure. Each run() also starts a compaction in the background, which deletes the
+ * oldest segments once every webhook they describe has been acked. When the oldest segment is mostly dead, its live webhooks are appended
+ * again to the active segment, so a webhook parked for a long time does not keep every later segment on disk.
+ * 
+ * @author Dan Simpson
+ *
+ */
+public class WebhookFileStore extends WebhookMemoryStore implements Closeable {
+
+	private static final Logger log = LoggerFactory.getLogger(WebhookFileStore.class);
+
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	private static final byte ADD = 1;
+	private static final byte UPDATE = 2;
+	private static final byte ACK = 3;
+
+	/**
+	 * The oldest segment is rewritten once at most this fraction of its records is live
+	 */
+	private static final int REWRITE_RATIO = 4;
+
+	/**
+	 * Where the live records of a webhook are, and what they hold so they can be appended again. Guarded by the append lock.
+	 */
+	private static class LogEntry {
+
+		public final long id;
+		public final long firstAttemptAt;
+		public int addSegment;
+		public int updateSegment = -1;
+		public int numAttempts = 0;
+		public long nextAttemptAt;
+
+		public LogEntry(long id, long firstAttemptAt, int addSegment) {
+			this.id = id;
+			this.firstAttemptAt = nextAttemptAt = firstAttemptAt;
+			this.addSegment = addSegment;
+		}
+	}
+
+	private static class Replayed {
+
+		public final Webhook webhook;
+		public final long firstAttemptAt;
+		public final int addSegment;
+		public int updateSegment = -1;
+		public int numAttempts = 0;
+		public long nextAttemptAt;
+
+		public Replayed(Webhook webhook, long firstAttemptAt, int addSegment) {
+			this.webhook = webhook;
+			this.firstAttemptAt = nextAttemptAt = firstAttemptAt;
+			this.addSegment = addSegment;
+		}
+	}
+
+	private final Path directory;
+	private final int segmentSize;
+	private final ConcurrentSkipListMap<Integer, WebhookLogSegment> segments = new ConcurrentSkipListMap<Integer, WebhookLogSegment>();
+	private final Map<Webhook, LogEntry> entries = new ConcurrentHashMap<Webhook, LogEntry>();
+	private final AtomicLong sequence = new AtomicLong();
+	private final Object appendLock = new Object();
+	private final AtomicBoolean compacting = new AtomicBoolean();
+	private final ExecutorService compactor = Executors.newSingleThreadExecutor((runnable) -> {
+		Thread thread = new Thread(runnable, "webhook-log-compaction");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private WebhookLogSegment active;
+	private boolean closed = false;
+
+	/**
+	 * Open the log in the given directory with the default segment size
+	 * 
+	 * @param directory
+	 * @param backoffFn
+	 * @throws IOException
+	 */
+	public WebhookFileStore(Path directory, BackoffStrategy backoffFn) throws IOException {
+		this(directory, DEFAULT_SEGMENT_SIZE, backoffFn);
+	}
+
+	/**
+	 * Open the log in the given directory, replaying any existing segments
+	 * 
+	 * @param directory
+	 * @param segmentSize
+	 *          size in bytes of each segment file, which bounds the size of a single webhook
+	 * @param backoffFn
+	 * @throws IOException
+	 */
+	public WebhookFileStore(Path directory, int segmentSize, BackoffStrategy backoffFn) throws IOException {
+		super(backoffFn);
+		this.directory = Files.createDirectories(directory);
+		this.segmentSize = segmentSize;
+		recover();
+	}
+
+	private void recover() throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + WebhookLogSegment.SUFFIX)) {
+			for (Path file : files) {
+				int index = WebhookLogSegment.indexOf(file);
+				segments.put(index, WebhookLogSegment.open(directory, index, segmentSize));
+			}
+		}
+
+		long started = System.currentTimeMillis();
+		Map<Long, Replayed> replayed = new HashMap<Long, Replayed>();
+		for (WebhookLogSegment segment : segments.values()) {
+			int index = segment.getIndex();
+			segment.replay((type, id, payload) -> {
+				if (id > sequence.get()) {
+					sequence.set(id);
+				}
+				switch (type) {
+				case ADD:
+					long firstAttemptAt = payload.getLong();
+					replayed.put(id, new Replayed(WebhookCodec.decode(payload), firstAttemptAt, index));
+					break;
+				case UPDATE:
+					Replayed entry = replayed.get(id);
+					if (entry != null) {
+						entry.numAttempts = payload.getInt();
+						entry.nextAttemptAt = payload.getLong();
+						entry.updateSegment = index;
+					}
+					break;
+				case ACK:
+					replayed.remove(id);
+					break;
+				default:
+					log.warn("Unknown record type {} in segment {}", type, index);
+				}
+			});
+		}
+
+		for (Map.Entry<Long, Replayed> e : replayed.entrySet()) {
+			Replayed r = e.getValue();
+			LogEntry entry = new LogEntry(e.getKey(), r.firstAttemptAt, r.addSegment);
+			entry.updateSegment = r.updateSegment;
+			entry.numAttempts = r.numAttempts;
+			entry.nextAttemptAt = r.nextAttemptAt;
+			retain(entry.addSegment);
+			retain(entry.updateSegment);
+			entries.put(r.webhook, entry);
+			restore(r.webhook, r.numAttempts, r.firstAttemptAt, r.nextAttemptAt);
+		}
+
+		int next = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+		active = WebhookLogSegment.open(directory, next, segmentSize);
+		segments.put(next, active);
+		compact();
+
+		if (!replayed.isEmpty()) {
+			log.info("Recovered {} webhooks from {} in {}ms", replayed.size(), directory, System.currentTimeMillis() - started);
+		}
+	}
+
+	@Override
+	protected void added(Webhook webhook, long firstAttemptAt) {
+		byte[] payload = addRecord(webhook, firstAttemptAt);
+		synchronized (appendLock) {
+			long id = sequence.incrementAndGet();
+			LogEntry entry = new LogEntry(id, firstAttemptAt, append(ADD, id, payload, true));
+			LogEntry previous = entries.put(webhook, entry);
+			if (previous != null) {
+				release(previous);
+			}
+		}
+	}
+
+	@Override
+	protected void rescheduled(Webhook webhook, int numAttempts, long nextAttemptAt) {
+		synchronized (appendLock) {
+			LogEntry entry = entries.get(webhook);
+			if (entry == null) {
+				return;
+			}
+			entry.numAttempts = numAttempts;
+			entry.nextAttemptAt = nextAttemptAt;
+			int previous = entry.updateSegment;
+			entry.updateSegment = append(UPDATE, entry.id, updateRecord(numAttempts, nextAttemptAt), true);
+			release(previous);
+		}
+	}
+
+	@Override
+	protected void removed(Webhook webhook) {
+		synchronized (appendLock) {
+			LogEntry entry = entries.remove(webhook);
+			if (entry != null) {
+				append(ACK, entry.id, new byte[0], false);
+				release(entry);
+			}
+		}
+	}
+
+	private static byte[] addRecord(Webhook webhook, long firstAttemptAt) {
+		byte[] encoded = WebhookCodec.encode(webhook);
+		ByteBuffer payload = ByteBuffer.allocate(8 + encoded.length);
+		payload.putLong(firstAttemptAt).put(encoded);
+		return payload.array();
+	}
+
+	private static byte[] updateRecord(int numAttempts, long nextAttemptAt) {
+		ByteBuffer payload = ByteBuffer.allocate(4 + 8);
+		payload.putInt(numAttempts).putLong(nextAttemptAt);
+		return payload.array();
+	}
+
+	/**
+	 * Append a record to the active segment, rolling to a new segment when full
+	 * 
+	 * @param retain
+	 *          pin the segment written to until the record is superseded
+	 * @return the index of the segment written to
+	 */
+	private int append(byte type, long id, byte[] payload, boolean retain) {
+		if (payload.length > WebhookLogSegment.maxPayload(segmentSize)) {
+			throw new IllegalArgumentException("Webhook of " + payload.length + " bytes does not fit in a log segment");
+		}
+		synchronized (appendLock) {
+			try {
+				if (!active.append(type, id, payload)) {
+					active.force();
+					active = WebhookLogSegment.open(directory, active.getIndex() + 1, segmentSize);
+					segments.put(active.getIndex(), active);
+					active.append(type, id, payload);
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			if (retain) {
+				active.getRefs().incrementAndGet();
+			}
+			return active.getIndex();
+		}
+	}
+
+	private void retain(int index) {
+		WebhookLogSegment segment = segments.get(index);
+		if (segment != null) {
+			segment.getRefs().incrementAndGet();
+		}
+	}
+
+	private void release(int index) {
+		WebhookLogSegment segment = segments.get(index);
+		if (segment != null) {
+			segment.getRefs().decrementAndGet();
+		}
+	}
+
+	private void release(LogEntry entry) {
+		release(entry.addSegment);
+		release(entry.updateSegment);
+	}
+
+	/**
+	 * Force appended records to the storage device. Called on each run(), which batches the fsyncs of every record appended since the last
+	 * tick.
+	 */
+	public void sync() {
+		for (WebhookLogSegment segment : segments.values()) {
+			segment.force();
+		}
+	}
+
+	/**
+	 * Delete the oldest segments which no longer hold a live record. Only a prefix of the log is removed, so an ack is never dropped while
+	 * the record it acknowledges survives in an older segment. When the oldest remaining segment is mostly dead, its live webhooks are
+	 * appended again to the active segment under their ids, and the segment is deleted too.
+	 */
+	public void compact() {
+		while (true) {
+			WebhookLogSegment oldest;
+			synchronized (appendLock) {
+				if (closed) {
+					return;
+				}
+				deletePrefix();
+				oldest = segments.firstEntry().getValue();
+				if (oldest == active || oldest.getRefs().get() * REWRITE_RATIO > oldest.getRecords()) {
+					return;
+				}
+			}
+			// Found without the lock, each is checked again under it before it is appended
+			int index = oldest.getIndex();
+			List<Map.Entry<Webhook, LogEntry>> live = entries.entrySet().stream().filter((e) -> e.getValue().addSegment == index)
+					.collect(Collectors.toList());
+			for (Map.Entry<Webhook, LogEntry> e : live) {
+				synchronized (appendLock) {
+					if (closed) {
+						return;
+					}
+					rewrite(e.getKey(), e.getValue(), index);
+				}
+			}
+			synchronized (appendLock) {
+				if (oldest.getRefs().get() > 0) {
+					// Pinned by a webhook added while it was the active segment
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Append the live records of a webhook again, and release the ones in the segment being compacted
+	 */
+	private void rewrite(Webhook webhook, LogEntry entry, int index) {
+		if (entries.get(webhook) != entry || entry.addSegment != index) {
+			return;
+		}
+		int add = entry.addSegment;
+		int update = entry.updateSegment;
+		entry.addSegment = append(ADD, entry.id, addRecord(webhook, entry.firstAttemptAt), true);
+		if (update >= 0) {
+			// Replaying the add again starts the webhook over, so its attempts follow
+			entry.updateSegment = append(UPDATE, entry.id, updateRecord(entry.numAttempts, entry.nextAttemptAt), true);
+		}
+		release(add);
+		release(update);
+	}
+
+	private void deletePrefix() {
+		Iterator<WebhookLogSegment> it = segments.values().iterator();
+		while (it.hasNext()) {
+			WebhookLogSegment segment = it.next();
+			if (segment == active || segment.getRefs().get() > 0) {
+				break;
+			}
+			try {
+				segment.delete();
+			} catch (IOException e) {
+				log.warn("Failed to delete segment {}", segment.getIndex(), e);
+				break;
+			}
+			it.remove();
+		}
+	}
+
+	/**
+	 * @return the number of segment files on disk
+	 */
+	public int getSegmentCount() {
+		return segments.size();
+	}
+
+	@Override
+	public void run() {
+		super.run();
+		sync();
+		if (compacting.compareAndSet(false, true)) {
+			try {
+				compactor.execute(() -> {
+					try {
+						compact();
+					} catch (RuntimeException e) {
+						log.error("Failed to compact {}", directory, e);
+					} finally {
+						compacting.set(false);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// Closed
+				compacting.set(false);
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		compactor.shutdown();
+		synchronized (appendLock) {
+			closed = true;
+			for (WebhookLogSegment segment : segments.values()) {
+				segment.close();
+			}
+			segments.clear();
+		}
+	}
+}
@@ -0,0 +1,199 @@
+package com.klatunetworks.webhooks.core.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A fixed-size, memory-mapped segment of the webhook log. Records are framed as [length][crc32][type][id][payload] and a zero length marks
+ * the end of the written region. Appends are not thread safe; the owning store serializes them.
+ * 
+ * @author Dan Simpson
+ *
+ */
+final class WebhookLogSegment implements Closeable {
+
+	private static final Logger log = LoggerFactory.getLogger(WebhookLogSegment.class);
+
+	public static final String SUFFIX = ".wal";
+
+	private static final int FRAME = 4 + 4;
+	private static final int HEADER = 1 + 8;
+
+	public interface RecordVisitor {
+		public void visit(byte type, long id, ByteBuffer payload);
+	}
+
+	private final int index;
+	private final Path path;
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+	private final AtomicInteger refs = new AtomicInteger();
+	private int records = 0;
+	private final CRC32 crc = new CRC32();
+	private volatile boolean dirty = false;
+
+	private WebhookLogSegment(int index, Path path, FileChannel channel, MappedByteBuffer buffer) {
+		this.index = index;
+		this.path = path;
+		this.channel = channel;
+		this.buffer = buffer;
+	}
+
+	/**
+	 * Open or create the segment with the given index
+	 * 
+	 * @param directory
+	 * @param index
+	 * @param size
+	 *          size of the segment in bytes, used when the file is created
+	 * @return the segment
+	 * @throws IOException
+	 */
+	public static WebhookLogSegment open(Path directory, int index, int size) throws IOException {
+		Path path = directory.resolve(String.format("%08d%s", index, SUFFIX));
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		long length = Files.exists(path) && channel.size() > 0 ? channel.size() : size;
+		return new WebhookLogSegment(index, path, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, length));
+	}
+
+	/**
+	 * @param path
+	 * @return the segment index encoded in the file name
+	 */
+	public static int indexOf(Path path) {
+		String name = path.getFileName().toString();
+		return Integer.parseInt(name.substring(0, name.length() - SUFFIX.length()));
+	}
+
+	/**
+	 * @return the largest payload a record in a segment of the given size can hold
+	 */
+	public static int maxPayload(int size) {
+		return size - FRAME - HEADER - 4;
+	}
+
+	/**
+	 * Append a record after the last written record
+	 * 
+	 * @return false if the segment has no room left for the record
+	 */
+	public boolean append(byte type, long id, byte[] payload) {
+		int length = HEADER + payload.length;
+		// keep room for the zero length terminator
+		if (buffer.remaining() < FRAME + length + 4) {
+			return false;
+		}
+
+		crc.reset();
+		crc.update(type);
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			crc.update((int) (id >>> shift));
+		}
+		crc.update(payload, 0, payload.length);
+
+		// write the body before the length, so a torn append reads as the end of the segment
+		int start = buffer.position();
+		buffer.position(start + 4);
+		buffer.putInt((int) crc.getValue());
+		buffer.put(type);
+		buffer.putLong(id);
+		buffer.put(payload);
+		buffer.putInt(start, length);
+		records++;
+		dirty = true;
+		return true;
+	}
+
+	/**
+	 * Visit every intact record from the start of the segment, and position the segment for appending after the last one.
+	 * 
+	 * @param visitor
+	 */
+	public void replay(RecordVisitor visitor) {
+		buffer.position(0);
+		CRC32 check = new CRC32();
+		while (buffer.remaining() >= FRAME + HEADER) {
+			int start = buffer.position();
+			int length = buffer.getInt();
+			if (length < HEADER || length > buffer.remaining() - 4) {
+				buffer.position(start);
+				break;
+			}
+
+			int checksum = buffer.getInt();
+			ByteBuffer body = buffer.slice();
+			body.limit(length);
+			check.reset();
+			check.update(body.duplicate());
+			if ((int) check.getValue() != checksum) {
+				log.warn("Corrupt record at {} in {}, ignoring the remainder of the segment", start, path);
+				buffer.position(start);
+				break;
+			}
+
+			byte type = body.get();
+			long id = body.getLong();
+			visitor.visit(type, id, body.slice());
+			buffer.position(start + FRAME + length);
+			records++;
+		}
+	}
+
+	/**
+	 * Flush appended records to the storage device
+	 */
+	public void force() {
+		if (dirty) {
+			dirty = false;
+			buffer.force();
+		}
+	}
+
+	/**
+	 * @return the number of live records which pin this segment
+	 */
+	public AtomicInteger getRefs() {
+		return refs;
+	}
+
+	/**
+	 * @return the number of records appended or replayed, live or not
+	 */
+	public int getRecords() {
+		return records;
+	}
+
+	/**
+	 * @return the index
+	 */
+	public int getIndex() {
+		return index;
+	}
+
+	@Override
+	public void close() throws IOException {
+		force();
+		channel.close();
+	}
+
+	/**
+	 * Close and remove the segment file
+	 * 
+	 * @throws IOException
+	 */
+	public void delete() throws IOException {
+		channel.close();
+		Files.deleteIfExists(path);
+	}
+}
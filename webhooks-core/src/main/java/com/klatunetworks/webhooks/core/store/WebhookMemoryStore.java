@@ -2,18 +2,27 @@ package com.klatunetworks.webhooks.core.store;
 
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
-import java.util.function.Function;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
 import com.klatunetworks.webhooks.core.Webhook;
 import com.klatunetworks.webhooks.core.WebhookResult;
 
 /**
- * A WebhookStore which retries Webhook calls (store in memory) based on the configured backoff function.
+ * A WebhookStore which retries Webhook calls (store in memory) based on the configured backoff strategy. A Retry-After header on the
+ * response extends the delay. Scheduled retries are kept in a
+ * min-heap ordered by their next attempt time, so each tick only touches the webhooks which are due. Each retry moves through its states
+ * (pending, enqueued, in-flight, exhausted) with compare-and-set, so results may be applied concurrently from any thread.
  * 
  * @author Dan Simpson
  *
@@ -22,94 +31,387 @@ public class WebhookMemoryStore implements WebhookStore, Runnable {
 
 	private static final Logger log = LoggerFactory.getLogger(WebhookMemoryStore.class);
 
-	private static class WebhookRetryDetails {
+	private enum State {
+		PENDING, ENQUEUED, IN_FLIGHT, EXHAUSTED
+	}
+
+	private static class WebhookRetryDetails implements Delayed {
 
-		public boolean enqueued;
-		public long firstAttemptAt;
-		public long nextAttemptAt;
-		public int numAttempts = 0;
+		private static final AtomicReferenceFieldUpdater<WebhookRetryDetails, State> STATE = AtomicReferenceFieldUpdater
+				.newUpdater(WebhookRetryDetails.class, State.class, "state");
 
-		public WebhookRetryDetails() {
-			this.firstAttemptAt = nextAttemptAt = System.currentTimeMillis();
-			this.enqueued = false;
+		public final Webhook webhook;
+		public final long firstAttemptAt;
+		public volatile long nextAttemptAt;
+		public volatile int numAttempts = 0;
+		public volatile long lastDelay = 0;
+		private volatile State state = State.PENDING;
+
+		public WebhookRetryDetails(Webhook webhook) {
+			this(webhook, 0, System.currentTimeMillis(), System.currentTimeMillis());
+		}
+
+		public WebhookRetryDetails(Webhook webhook, int numAttempts, long firstAttemptAt, long nextAttemptAt) {
+			this.webhook = webhook;
+			this.numAttempts = numAttempts;
+			this.firstAttemptAt = firstAttemptAt;
+			this.nextAttemptAt = nextAttemptAt;
 		}
 
 		public long numSeconds() {
 			return TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - firstAttemptAt);
 		}
 
-		public void enqueued() {
-			this.enqueued = true;
-			this.numAttempts++;
+		public boolean transition(State from, State to) {
+			return STATE.compareAndSet(this, from, to);
 		}
 
-		public void reschedule(long nextAttemptAt) {
-			this.enqueued = false;
-			this.nextAttemptAt = nextAttemptAt;
+		/**
+		 * Move a dispatched (enqueued or in-flight) retry to the given state
+		 * 
+		 * @return true if this thread owns the transition
+		 */
+		public boolean complete(State to) {
+			return transition(State.IN_FLIGHT, to) || transition(State.ENQUEUED, to);
+		}
+
+		public boolean enqueued() {
+			if (transition(State.PENDING, State.ENQUEUED)) {
+				numAttempts++;
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Undo enqueued() for a webhook which was not dispatched
+		 */
+		public boolean rejected() {
+			if (transition(State.ENQUEUED, State.PENDING)) {
+				numAttempts--;
+				return true;
+			}
+			return false;
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(nextAttemptAt - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
 		}
 
-		public boolean isExhausted() {
-			return nextAttemptAt <= 0;
+		@Override
+		public int compareTo(Delayed other) {
+			return Long.compare(nextAttemptAt, ((WebhookRetryDetails) other).nextAttemptAt);
 		}
 	}
 
 	private final Map<Webhook, WebhookRetryDetails> webhooks = new ConcurrentHashMap<Webhook, WebhookRetryDetails>();
-	private final LinkedBlockingQueue<Webhook> outbox = new LinkedBlockingQueue<Webhook>();
+	private final DelayQueue<WebhookRetryDetails> schedule = new DelayQueue<WebhookRetryDetails>();
+	private final WebhookOutbox outbox;
+
+	private final BackoffStrategy backoffFn;
+	private final Histogram attempts;
+	private final AtomicLong suppressed = new AtomicLong();
+	private volatile int capacity = Integer.MAX_VALUE;
+	private volatile DuplicateFilter duplicates;
+	private volatile DeadLetterSink deadLetters;
+
+	public WebhookMemoryStore(BackoffStrategy backoffFn) {
+		this(backoffFn, new WebhookOutbox());
+	}
 
-	private final Function<Integer, Long> backoffFn;
+	/**
+	 * Create a store which flushes due webhooks to the given outbox. Webhooks the outbox refuses stay scheduled until the next run, and
+	 * webhooks it drops count as a failed attempt.
+	 * 
+	 * @param backoffFn
+	 * @param outbox
+	 */
+	public WebhookMemoryStore(BackoffStrategy backoffFn, WebhookOutbox outbox) {
+		this(backoffFn, outbox, null);
+	}
 
-	public WebhookMemoryStore(Function<Integer, Long> backoffFn) {
+	/**
+	 * @param backoffFn
+	 * @param outbox
+	 * @param metrics
+	 *          optional registry for the webhook.attempts histogram, the number of attempts of each delivered or exhausted webhook
+	 */
+	public WebhookMemoryStore(BackoffStrategy backoffFn, WebhookOutbox outbox, MetricRegistry metrics) {
 		this.backoffFn = backoffFn;
+		this.outbox = outbox;
+		this.outbox.setDropListener(this::dropped);
+		this.attempts = metrics == null ? null : metrics.histogram("webhook.attempts");
 	}
 
 	@Override
-	public LinkedBlockingQueue<Webhook> getQueue() {
+	public BlockingQueue<Webhook> getQueue() {
+		return outbox.getQueue();
+	}
+
+	/**
+	 * @return the outbox
+	 */
+	public WebhookOutbox getOutbox() {
 		return outbox;
 	}
 
+	private void dropped(Webhook webhook) {
+		WebhookResult result = new WebhookResult(webhook);
+		result.setError(new RejectedExecutionException("Dropped from a full outbox"));
+		update(result);
+	}
+
+	/**
+	 * Suppress resubmissions of webhooks seen within the window of the filter. Webhooks still in the store are always suppressed.
+	 * 
+	 * @param duplicates
+	 *          the filter, or null to only suppress webhooks still in the store
+	 */
+	public void setDuplicateFilter(DuplicateFilter duplicates) {
+		this.duplicates = duplicates;
+	}
+
+	/**
+	 * Record webhooks whose retries are exhausted in the sink, instead of only logging them
+	 * 
+	 * @param deadLetters
+	 *          the sink, or null to discard exhausted webhooks
+	 */
+	public void setDeadLetterSink(DeadLetterSink deadLetters) {
+		this.deadLetters = deadLetters;
+	}
+
+	/**
+	 * @return the number of submissions suppressed as duplicates
+	 */
+	public long getSuppressedWebhooks() {
+		return suppressed.get();
+	}
+
+	/**
+	 * Bound the number of webhooks in the store, delivered and exhausted webhooks make room. The bound is approximate while webhooks are
+	 * added concurrently.
+	 * 
+	 * @param capacity
+	 *          the maximum number of webhooks, unbounded by default
+	 */
+	public void setCapacity(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Capacity must be positive");
+		}
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Add a webhook, unless it equals one in the store or the duplicate filter has seen it
+	 * 
+	 * @throws RejectedExecutionException
+	 *           if the store is at its capacity
+	 */
 	@Override
 	public void add(Webhook webhook) {
-		if (webhooks.put(webhook, new WebhookRetryDetails()) != null) {
-			log.warn("Map overwrite detected, calling code is likely misusing the store.");
+		if (!offer(webhook)) {
+			throw new RejectedExecutionException("Store is at its capacity of " + capacity + " webhooks");
 		}
 	}
 
+	/**
+	 * Add a webhook unless the store is at its capacity. Duplicates are suppressed as by {@link #add(Webhook)} and count as added.
+	 */
 	@Override
-	public synchronized void update(WebhookResult result) {
+	public boolean offer(Webhook webhook) {
+		if (webhooks.size() >= capacity && !webhooks.containsKey(webhook)) {
+			return false;
+		}
+		DuplicateFilter duplicates = this.duplicates;
+		WebhookRetryDetails retry = new WebhookRetryDetails(webhook);
+		if (webhooks.putIfAbsent(webhook, retry) != null) {
+			suppress(webhook);
+			return true;
+		}
+		if (duplicates != null && !duplicates.add(webhook)) {
+			webhooks.remove(webhook, retry);
+			suppress(webhook);
+			return true;
+		}
+		try {
+			added(webhook, retry.firstAttemptAt);
+		} catch (RuntimeException e) {
+			// Such as a webhook too large for durable storage, which must not suppress later adds
+			webhooks.remove(webhook, retry);
+			throw e;
+		}
+		schedule.add(retry);
+		return true;
+	}
+
+	private void suppress(Webhook webhook) {
+		suppressed.incrementAndGet();
+		log.debug("Suppressed duplicate webhook {} to {}", webhook.getId(), webhook.getUrl());
+	}
+
+	/**
+	 * Restore a webhook which was scheduled before the store was created, such as one recovered from durable storage.
+	 * 
+	 * @param webhook
+	 * @param numAttempts
+	 *          the attempts already made
+	 * @param firstAttemptAt
+	 *          time of the first attempt in milliseconds
+	 * @param nextAttemptAt
+	 *          time of the next attempt in milliseconds
+	 */
+	protected void restore(Webhook webhook, int numAttempts, long firstAttemptAt, long nextAttemptAt) {
+		WebhookRetryDetails retry = new WebhookRetryDetails(webhook, numAttempts, firstAttemptAt, nextAttemptAt);
+		webhooks.put(webhook, retry);
+		schedule.add(retry);
+	}
+
+	/**
+	 * Invoked when a webhook is added to the store, before it is scheduled. If it throws, the webhook is not added.
+	 * 
+	 * @param webhook
+	 * @param firstAttemptAt
+	 */
+	protected void added(Webhook webhook, long firstAttemptAt) {
+	}
+
+	/**
+	 * Invoked when a failed webhook is rescheduled, before it is visible to the schedule
+	 * 
+	 * @param webhook
+	 * @param numAttempts
+	 * @param nextAttemptAt
+	 */
+	protected void rescheduled(Webhook webhook, int numAttempts, long nextAttemptAt) {
+	}
+
+	/**
+	 * Invoked when a webhook leaves the store, either delivered or exhausted
+	 * 
+	 * @param webhook
+	 */
+	protected void removed(Webhook webhook) {
+	}
+
+	@Override
+	public void dispatched(Webhook webhook) {
+		WebhookRetryDetails retry = webhooks.get(webhook);
+		if (retry != null) {
+			retry.transition(State.ENQUEUED, State.IN_FLIGHT);
+		}
+	}
+
+	@Override
+	public void release(Webhook webhook) {
+		WebhookRetryDetails retry = webhooks.get(webhook);
+		if (retry != null && retry.rejected()) {
+			schedule.add(retry);
+		}
+	}
+
+	/**
+	 * The delay is not persisted by durable stores, a webhook recovered before it passes is due at once
+	 */
+	@Override
+	public void release(Webhook webhook, long delay, TimeUnit unit) {
+		WebhookRetryDetails retry = webhooks.get(webhook);
+		if (retry != null && retry.rejected()) {
+			// Not visible to run() until it is back in the schedule
+			retry.nextAttemptAt = System.currentTimeMillis() + unit.toMillis(delay);
+			schedule.add(retry);
+		}
+	}
+
+	@Override
+	public void update(WebhookResult result) {
+		WebhookRetryDetails retry = webhooks.get(result.getWebhook());
+		if (retry == null) {
+			return;
+		}
+
 		if (result.isSuccessful()) {
-			WebhookRetryDetails retry = webhooks.remove(result.getWebhook());
-			if (retry != null && retry.numAttempts > 1) {
-				log.info("Retry succeeded after {} attempts and {} seconds", retry.numAttempts, retry.numSeconds());
-			}
-		} else {
-			WebhookRetryDetails retry = webhooks.get(result.getWebhook());
-			if (retry == null) {
-				return;
+			if (webhooks.remove(result.getWebhook(), retry)) {
+				removed(result.getWebhook());
+				recordAttempts(retry);
+				if (retry.numAttempts > 1) {
+					log.info("Retry succeeded after {} attempts and {} seconds", retry.numAttempts, retry.numSeconds());
+				}
 			}
+			return;
+		}
 
-			retry.reschedule(backoffFn.apply(retry.numAttempts + 1));
-			if (retry.isExhausted()) {
+		long delay = backoffFn.delay(retry.numAttempts + 1, retry.lastDelay);
+		long retryAfter = result.getRetryAfter();
+		if (delay > 0 && retryAfter > delay) {
+			delay = retryAfter;
+		}
+		if (delay <= 0) {
+			if (retry.complete(State.EXHAUSTED)) {
 				log.warn("Retry failed after {} attempts and {} seconds. Purging.", retry.numAttempts, retry.numSeconds());
-				webhooks.remove(result.getWebhook());
+				if (webhooks.remove(result.getWebhook(), retry)) {
+					removed(result.getWebhook());
+					recordAttempts(retry);
+					deadLetter(new DeadLetter(retry.webhook, retry.numAttempts, retry.firstAttemptAt, System.currentTimeMillis(),
+							DeadLetter.reason(result)));
+				}
 			}
+		} else if (retry.complete(State.PENDING)) {
+			// Not visible to run() until it is back in the schedule
+			retry.lastDelay = delay;
+			long now = System.currentTimeMillis();
+			retry.nextAttemptAt = delay > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + delay;
+			rescheduled(result.getWebhook(), retry.numAttempts, retry.nextAttemptAt);
+			schedule.add(retry);
+		}
+	}
+
+	private void deadLetter(DeadLetter letter) {
+		DeadLetterSink sink = deadLetters;
+		if (sink != null) {
+			try {
+				sink.accept(letter);
+			} catch (RuntimeException e) {
+				log.error("Failed to record dead letter {}", letter.getWebhook().getId(), e);
+			}
+		}
+	}
+
+	private void recordAttempts(WebhookRetryDetails retry) {
+		if (attempts != null) {
+			attempts.update(retry.numAttempts);
 		}
 	}
 
 	@Override
 	/**
-	 * Flush the ready-to-retry Webhooks to the queue for the service to consume
+	 * Flush the ready-to-retry Webhooks to the queue for the service to consume. Only the webhooks whose next attempt is due are visited.
 	 */
 	public void run() {
-		long threshold = System.currentTimeMillis();
-		webhooks.forEach((webhook, retry) -> {
-			if (retry.nextAttemptAt < threshold && !retry.enqueued) {
-				retry.enqueued();
-				outbox.add(webhook);
+		WebhookRetryDetails retry;
+		while ((retry = schedule.poll()) != null) {
+			// Skip entries replaced while parked in the schedule
+			if (webhooks.get(retry.webhook) != retry || !retry.enqueued()) {
+				continue;
 			}
-		});
+			if (!outbox.offer(retry.webhook)) {
+				// Outbox is full, try again next run
+				retry.rejected();
+				schedule.add(retry);
+				return;
+			}
+		}
 	}
 
 	public int getDelayedWebhooks() {
 		return webhooks.size();
 	}
+
+	/**
+	 * @return the number of webhooks waiting in the schedule for their next attempt
+	 */
+	public int getScheduledWebhooks() {
+		return schedule.size();
+	}
 }
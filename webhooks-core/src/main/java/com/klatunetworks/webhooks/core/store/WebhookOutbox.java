@@ -0,0 +1,220 @@
+package com.klatunetworks.webhooks.core.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.klatunetworks.webhooks.core.Webhook;
+
+/**
+ * A bounded, array backed queue of webhooks awaiting dispatch. Producers go through {@link #offer(Webhook)}, which applies the overflow
+ * policy when the queue is full. Consumers take from {@link #getQueue()}. With the SPILL policy, taking from the queue reads spilled
+ * webhooks back into it.
+ * 
+ * @author Dan Simpson
+ *
+ */
+public class WebhookOutbox implements Closeable {
+
+	private static final Logger log = LoggerFactory.getLogger(WebhookOutbox.class);
+
+	public static final int DEFAULT_CAPACITY = 16 * 1024;
+
+	private final ArrayBlockingQueue<Webhook> queue;
+	private final OverflowPolicy policy;
+	private final WebhookSpillFile spill;
+	private volatile int spilled = 0;
+	private Consumer<Webhook> dropListener = (webhook) -> {
+	};
+
+	/**
+	 * Create an outbox with the default capacity which rejects on overflow
+	 */
+	public WebhookOutbox() {
+		this(DEFAULT_CAPACITY, OverflowPolicy.REJECT);
+	}
+
+	/**
+	 * @param capacity
+	 *          the maximum number of queued webhooks
+	 * @param policy
+	 *          any policy but SPILL
+	 */
+	public WebhookOutbox(int capacity, OverflowPolicy policy) {
+		if (policy == OverflowPolicy.SPILL) {
+			throw new IllegalArgumentException("A spill file is required for the SPILL policy");
+		}
+		this.queue = new ArrayBlockingQueue<Webhook>(capacity);
+		this.policy = policy;
+		this.spill = null;
+	}
+
+	/**
+	 * Create an outbox which spills overflow to a file. Spilled webhooks are read back as copies, equal to the originals.
+	 * 
+	 * @param capacity
+	 *          the maximum number of queued webhooks
+	 * @param spillFile
+	 *          file to write overflow to, truncated on open
+	 * @throws IOException
+	 */
+	public WebhookOutbox(int capacity, Path spillFile) throws IOException {
+		this.queue = new RefillingQueue(capacity);
+		this.policy = OverflowPolicy.SPILL;
+		this.spill = new WebhookSpillFile(spillFile);
+	}
+
+	/**
+	 * @return the queue consumers take webhooks from
+	 */
+	public BlockingQueue<Webhook> getQueue() {
+		return queue;
+	}
+
+	/**
+	 * @return the overflow policy
+	 */
+	public OverflowPolicy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Listen for webhooks evicted by the DROP_OLDEST policy
+	 * 
+	 * @param dropListener
+	 */
+	public void setDropListener(Consumer<Webhook> dropListener) {
+		this.dropListener = dropListener;
+	}
+
+	/**
+	 * Queue a webhook for dispatch, applying the overflow policy if the queue is full
+	 * 
+	 * @param webhook
+	 * @return false if the webhook was rejected, or the thread was interrupted while blocked
+	 */
+	public boolean offer(Webhook webhook) {
+		if (policy == OverflowPolicy.SPILL) {
+			return spill(webhook);
+		}
+		if (queue.offer(webhook)) {
+			return true;
+		}
+
+		switch (policy) {
+		case BLOCK:
+			try {
+				queue.put(webhook);
+				return true;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		case DROP_OLDEST:
+			while (!queue.offer(webhook)) {
+				Webhook dropped = queue.poll();
+				if (dropped != null) {
+					dropListener.accept(dropped);
+				}
+			}
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private synchronized boolean spill(Webhook webhook) {
+		// Keep FIFO order, nothing bypasses the spilled webhooks
+		refill();
+		if (spill.size() == 0 && queue.offer(webhook)) {
+			return true;
+		}
+		try {
+			spill.write(webhook);
+			spilled = spill.size();
+			return true;
+		} catch (IOException e) {
+			log.error("Failed to spill webhook {}, rejecting it", webhook.getId(), e);
+			return false;
+		}
+	}
+
+	/**
+	 * Move spilled webhooks back into the queue while it has room. Called as consumers take from the queue.
+	 */
+	public synchronized void refill() {
+		if (spill == null) {
+			return;
+		}
+		try {
+			while (spill.size() > 0 && queue.remainingCapacity() > 0) {
+				queue.offer(spill.read());
+			}
+		} catch (IOException e) {
+			log.error("Failed to read back spilled webhooks, {} remain in the spill file", spill.size(), e);
+		} finally {
+			spilled = spill.size();
+		}
+	}
+
+	/**
+	 * @return the number of webhooks in the spill file
+	 */
+	public synchronized int getSpilled() {
+		return spill == null ? 0 : spill.size();
+	}
+
+	/**
+	 * Queue of the SPILL policy, which refills itself from the spill file after webhooks are taken
+	 */
+	private class RefillingQueue extends ArrayBlockingQueue<Webhook> {
+
+		private static final long serialVersionUID = 1L;
+
+		public RefillingQueue(int capacity) {
+			super(capacity);
+		}
+
+		private <T> T taken(T result) {
+			if (spilled > 0) {
+				refill();
+			}
+			return result;
+		}
+
+		@Override
+		public Webhook poll() {
+			return taken(super.poll());
+		}
+
+		@Override
+		public Webhook poll(long timeout, TimeUnit unit) throws InterruptedException {
+			return taken(super.poll(timeout, unit));
+		}
+
+		@Override
+		public Webhook take() throws InterruptedException {
+			return taken(super.take());
+		}
+
+		@Override
+		public int drainTo(Collection<? super Webhook> c, int maxElements) {
+			return taken(super.drainTo(c, maxElements));
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (spill != null) {
+			spill.close();
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package com.klatunetworks.webhooks.core.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import com.klatunetworks.webhooks.core.Webhook;
+
+/**
+ * A FIFO of encoded webhooks in a file. The file is truncated whenever it has been read to the end. Not thread safe.
+ * 
+ * @author Dan Simpson
+ *
+ */
+final class WebhookSpillFile implements Closeable {
+
+	private final FileChannel channel;
+	private final ByteBuffer length = ByteBuffer.allocate(4);
+	private long readPosition = 0;
+	private long writePosition = 0;
+	private int size = 0;
+
+	public WebhookSpillFile(Path path) throws IOException {
+		this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+	public void write(Webhook webhook) throws IOException {
+		byte[] encoded = WebhookCodec.encode(webhook);
+		ByteBuffer record = ByteBuffer.allocate(4 + encoded.length);
+		record.putInt(encoded.length).put(encoded).flip();
+		long position = writePosition;
+		while (record.hasRemaining()) {
+			position += channel.write(record, position);
+		}
+		// A failed write leaves the tail to be overwritten by the next record
+		writePosition = position;
+		size++;
+	}
+
+	/**
+	 * @return the oldest spilled webhook, or null if empty
+	 */
+	public Webhook read() throws IOException {
+		if (size == 0) {
+			return null;
+		}
+		length.clear();
+		readFully(length, readPosition);
+		ByteBuffer record = ByteBuffer.allocate(length.getInt(0));
+		readFully(record, readPosition + 4);
+		readPosition += 4 + record.capacity();
+		record.flip();
+
+		if (--size == 0) {
+			channel.truncate(0);
+			readPosition = writePosition = 0;
+		}
+		return WebhookCodec.decode(record);
+	}
+
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("Unexpected end of spill file");
+			}
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
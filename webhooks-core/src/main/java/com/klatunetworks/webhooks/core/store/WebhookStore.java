@@ -1,8 +1,7 @@
 package com.klatunetworks.webhooks.core.store;
 
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
-import java.util.function.Function;
 
 import com.klatunetworks.webhooks.core.Webhook;
 import com.klatunetworks.webhooks.core.WebhookResult;
@@ -19,7 +18,7 @@ public interface WebhookStore {
 	/**
 	 * @return The queue of webhooks that need immediate dispatch
 	 */
-	public LinkedBlockingQueue<Webhook> getQueue();
+	public BlockingQueue<Webhook> getQueue();
 
 	/**
 	 * Add a webhook to the store for future dispatch
@@ -28,6 +27,47 @@ public interface WebhookStore {
 	 */
 	public void add(Webhook webhook);
 
+	/**
+	 * Add a webhook to the store for future dispatch, unless the store is at its capacity. Stores without a capacity always add it.
+	 * 
+	 * @param webhook
+	 * @return false if the store is full and the webhook was not added
+	 */
+	public default boolean offer(Webhook webhook) {
+		add(webhook);
+		return true;
+	}
+
+	/**
+	 * Notify the store that a webhook taken from the queue has been handed to the http client.
+	 * 
+	 * @param webhook
+	 */
+	public default void dispatched(Webhook webhook) {
+	}
+
+	/**
+	 * Return a webhook taken from the queue which will not be dispatched, such as one left over when the service shuts down. Stores which
+	 * can reschedule it should override this.
+	 * 
+	 * @param webhook
+	 */
+	public default void release(Webhook webhook) {
+	}
+
+	/**
+	 * Return a webhook taken from the queue which can not be dispatched yet, such as one over the backlog of a host whose breaker is open,
+	 * to be offered again after the delay. Like {@link #release(Webhook)} the attempt is not counted. By default the webhook is released at
+	 * once.
+	 * 
+	 * @param webhook
+	 * @param delay
+	 * @param unit
+	 */
+	public default void release(Webhook webhook, long delay, TimeUnit unit) {
+		release(webhook);
+	}
+
 	/**
 	 * Update the store with a webhooks result. The store should remove it or reschedule depending on the behavior of the store.
 	 * 
@@ -35,19 +75,22 @@ public interface WebhookStore {
 	 */
 	public void update(WebhookResult result);
 
-	public static Function<Integer, Long> newConstantBackoffFn(long duration, TimeUnit unit) {
-		return (n) -> unit.toMillis(duration);
+	public static BackoffStrategy newConstantBackoffFn(long duration, TimeUnit unit) {
+		return BackoffStrategy.constant(duration, unit);
 	}
 
-	public static Function<Integer, Long> newLinearBackoffFn(long duration, TimeUnit unit) {
-		return (n) -> unit.toMillis(duration) * (n - 1);
+	public static BackoffStrategy newLinearBackoffFn(long duration, TimeUnit unit) {
+		return BackoffStrategy.linear(duration, unit);
 	}
 
-	public static Function<Integer, Long> newExponentialBackoffFn(long duration, TimeUnit unit) {
-		return (n) -> unit.toMillis(duration) * (n - 1);
+	/**
+	 * @return a backoff which doubles the duration with each retry, without limit
+	 */
+	public static BackoffStrategy newExponentialBackoffFn(long duration, TimeUnit unit) {
+		return BackoffStrategy.exponential(duration, Long.MAX_VALUE, unit);
 	}
 
-	public static Function<Integer, Long> newRetryLimiter(long max, Function<Integer, Long> backoffFn) {
-		return (n) -> n > max ? -1l : backoffFn.apply(n);
+	public static BackoffStrategy newRetryLimiter(long max, BackoffStrategy backoffFn) {
+		return backoffFn.withMaxAttempts((int) Math.min(max, Integer.MAX_VALUE));
 	}
 }
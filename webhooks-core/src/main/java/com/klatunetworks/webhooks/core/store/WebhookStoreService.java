@@ -1,17 +1,49 @@
 package com.klatunetworks.webhooks.core.store;
 
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
 import com.klatunetworks.webhooks.core.Webhook;
+import com.klatunetworks.webhooks.core.WebhookResult;
 import com.klatunetworks.webhooks.core.WebhookServiceContract;
 
 /**
- * A Webhook service which leverages a store for managing the state of webhooks. The run method will block indefinitely, so an instance of
+ * A Webhook service which leverages a store for managing the state of webhooks. The run method will block until shutdown, so an instance of
  * this class should be submitted to an executor service.
  * 
+ * Webhooks are drained from the store queue in batches into a backlog per destination host. Hosts are served round-robin, one webhook per
+ * host per pass, and dispatched without waiting for their results. Dispatch is bounded by a global in-flight limit and an in-flight limit
+ * per host, a quarter of the global limit by default, so a slow host can only tie up its own share of connections. The rotation resumes
+ * after the last host served, so permits freed while the global limit is reached go to each host in turn.
+ * 
+ * Optionally each host gets a circuit breaker. While a breaker is open, webhooks for its host are parked in the backlog without a network
+ * call, and released together once a probe succeeds. Webhooks which do not fit in the backlog of an open host are handed back to the store
+ * until the breaker would let a probe through, without counting an attempt.
+ * 
+ * Each host also has a token bucket {@link RateLimiter}, unlimited unless configured. A webhook over the rate stays in the backlog without
+ * a network call. 429 responses lower the rate of the host and Retry-After headers pause it, so a throttling receiver is not hammered by
+ * retries.
+ * 
+ * The in-flight limit of each host is fixed at the per host limit unless adaptive {@link ConcurrencyLimiter}s are configured, which follow
+ * the latency and failures of the host up to a ceiling.
+ * 
  * @author Dan Simpson
  *
  */
@@ -19,34 +51,394 @@ public class WebhookStoreService implements Runnable {
 
 	private static final Logger log = LoggerFactory.getLogger(WebhookStoreService.class);
 
+	public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+	/**
+	 * Fraction of the global in-flight limit a single host may hold, unless a per host limit is given
+	 */
+	public static final int DEFAULT_HOST_SHARE = 4;
+
+	private static final int BATCH_SIZE = 64;
+	private static final int MAX_HOST_BACKLOG = 256;
+	private static final long POLL_MILLIS = 100;
+	private static final long WAIT_MILLIS = 10;
+	private static final long OVERFLOW_MILLIS = 100;
+
 	private final WebhookServiceContract service;
 	private final WebhookStore store;
+	private final int maxInFlight;
+	private final int maxInFlightPerHost;
+	private final Optional<MetricRegistry> metrics;
+	private final Semaphore permits;
+	private final Semaphore completions = new Semaphore(0);
+	private final CountDownLatch stopped = new CountDownLatch(1);
+	private final Map<String, HostQueue> hosts = new ConcurrentHashMap<String, HostQueue>();
+	private final ArrayDeque<HostQueue> rotation = new ArrayDeque<HostQueue>();
+	private final Map<String, Gauge<Integer>> gauges = new HashMap<String, Gauge<Integer>>();
+	private Supplier<CircuitBreaker> breakers = () -> null;
+	private Function<String, RateLimiter> limiters = (host) -> RateLimiter.unlimited();
+	private Function<String, ConcurrencyLimiter> concurrency;
+	private int backlog = 0;
+	private volatile boolean running = true;
 
 	public WebhookStoreService(WebhookServiceContract service, WebhookStore store) {
+		this(service, store, DEFAULT_MAX_IN_FLIGHT);
+	}
+
+	/**
+	 * @param service
+	 * @param store
+	 * @param maxInFlight
+	 *          the maximum number of webhooks awaiting a result at once, of which a single host may hold a quarter
+	 */
+	public WebhookStoreService(WebhookServiceContract service, WebhookStore store, int maxInFlight) {
+		this(service, store, maxInFlight, Math.max(1, maxInFlight / DEFAULT_HOST_SHARE), null);
+	}
+
+	/**
+	 * @param service
+	 * @param store
+	 * @param maxInFlight
+	 *          the maximum number of webhooks awaiting a result at once
+	 * @param maxInFlightPerHost
+	 *          the maximum number of webhooks awaiting a result at once for a single host
+	 * @param metrics
+	 *          optional registry for per host queue depth and in-flight gauges
+	 */
+	public WebhookStoreService(WebhookServiceContract service, WebhookStore store, int maxInFlight, int maxInFlightPerHost,
+			MetricRegistry metrics) {
 		this.service = service;
 		this.store = store;
+		this.maxInFlight = maxInFlight;
+		this.maxInFlightPerHost = maxInFlightPerHost;
+		this.metrics = Optional.ofNullable(metrics);
+		this.permits = new Semaphore(maxInFlight);
+		this.concurrency = (host) -> ConcurrencyLimiter.fixed(maxInFlightPerHost);
+	}
+
+	/**
+	 * Give each destination host a circuit breaker. Must be set before the service is run.
+	 * 
+	 * @param breakers
+	 *          factory for the breaker of a host
+	 */
+	public void setCircuitBreakers(Supplier<CircuitBreaker> breakers) {
+		this.breakers = breakers;
+	}
+
+	/**
+	 * Give hosts configured rate limits, such as the limits receivers publish. Must be set before the service is run.
+	 * 
+	 * @param limiters
+	 *          factory for the rate limiter of a host, {@link RateLimiter#unlimited()} for hosts without a limit
+	 */
+	public void setRateLimiters(Function<String, RateLimiter> limiters) {
+		this.limiters = limiters;
+	}
+
+	/**
+	 * Give hosts adaptive in-flight limits in place of the fixed per host limit. Must be set before the service is run.
+	 * 
+	 * <pre>
+	 * service.setConcurrencyLimiters((host) -&gt; new ConcurrencyLimiter(4, 1, maxInFlightPerHost));
+	 * </pre>
+	 * 
+	 * @param concurrency
+	 *          factory for the in-flight limiter of a host
+	 */
+	public void setConcurrencyLimiters(Function<String, ConcurrencyLimiter> concurrency) {
+		this.concurrency = concurrency;
 	}
 
 	/**
 	 * Submit a webhook for future callout
 	 * 
 	 * @param webhook
+	 * @throws RejectedExecutionException
+	 *           if the store is at its capacity
 	 */
 	public void submit(Webhook webhook) {
 		store.add(webhook);
 	}
 
+	/**
+	 * Submit a webhook for future callout, unless the store is at its capacity
+	 * 
+	 * @param webhook
+	 * @return false if the store is full and the webhook was not submitted
+	 */
+	public boolean offer(Webhook webhook) {
+		return store.offer(webhook);
+	}
+
 	@Override
 	public void run() {
-		LinkedBlockingQueue<Webhook> queue = store.getQueue();
-		while (true) {
-			try {
-				service.submit(queue.take(), result -> store.update(result));
-			} catch (InterruptedException e) {
-				log.warn("Thread interrupted.  Exiting.");
-				return;
+		BlockingQueue<Webhook> queue = store.getQueue();
+		List<Webhook> batch = new ArrayList<Webhook>(BATCH_SIZE);
+		try {
+			while (running) {
+				if (backlog == 0) {
+					Webhook webhook = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+					if (webhook == null) {
+						continue;
+					}
+					batch.add(webhook);
+				}
+				queue.drainTo(batch, BATCH_SIZE - batch.size());
+				for (Webhook webhook : batch) {
+					route(webhook);
+				}
+				batch.clear();
+
+				if (dispatch() == 0 && backlog > 0) {
+					// Every host with a backlog is at its limit
+					completions.tryAcquire(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+					completions.drainPermits();
+				}
+			}
+		} catch (InterruptedException e) {
+			log.warn("Thread interrupted.  Exiting.");
+			batch.forEach(store::release);
+		} finally {
+			releaseBacklog();
+			stopped.countDown();
+		}
+	}
+
+	private void route(Webhook webhook) {
+		HostQueue host = hosts.get(webhook.getHost());
+		if (host == null) {
+			String name = webhook.getHost();
+			host = new HostQueue(name, breakers.get(), limiters.apply(name), concurrency.apply(name));
+			rotation.add(host);
+			hosts.put(host.getHost(), host);
+			register(host);
+		}
+		if (host.getDepth() >= MAX_HOST_BACKLOG) {
+			if (host.isTripped()) {
+				// Not an attempt, so parking can not exhaust the retries of a webhook
+				long delay = Math.max(WAIT_MILLIS, host.getBreaker().getRemainingOpenMillis());
+				store.release(webhook, delay, TimeUnit.MILLISECONDS);
+			} else {
+				// Held back for a while, rather than offered again on the next tick while the host is still saturated
+				store.release(webhook, OVERFLOW_MILLIS, TimeUnit.MILLISECONDS);
+			}
+			return;
+		}
+		host.add(webhook);
+		backlog++;
+	}
+
+	/**
+	 * Serve the host backlogs round-robin until every one is empty or at its limit. The rotation keeps its place between calls, so when the
+	 * global limit runs out the host whose turn it was is served first once a permit frees up.
+	 * 
+	 * @return the number of webhooks dispatched
+	 */
+	private int dispatch() {
+		int total = 0;
+		int passed = 0;
+		while (running && passed < rotation.size()) {
+			HostQueue host = rotation.poll();
+			if (host.isIdle()) {
+				hosts.remove(host.getHost());
+				unregister(host);
+				continue;
+			}
+			// The breaker is checked before a token is taken, so an open host does not use up its rate
+			if (host.getDepth() == 0 || !host.hasCapacity() || (host.getBreaker() != null && !host.getBreaker().isRequestAllowed())) {
+				rotation.add(host);
+				passed++;
+				continue;
+			}
+			if (!permits.tryAcquire()) {
+				// Still this host's turn when a permit frees up
+				rotation.addFirst(host);
+				return total;
+			}
+			rotation.add(host);
+			if (!host.getLimiter().tryAcquire()) {
+				permits.release();
+				passed++;
+				continue;
+			}
+			if (host.getBreaker() != null && !host.getBreaker().allowRequest()) {
+				permits.release();
+				passed++;
+				continue;
 			}
+			backlog--;
+			dispatch(host, host.poll());
+			total++;
+			passed = 0;
 		}
+		return total;
+	}
+
+	private void dispatch(HostQueue host, Webhook webhook) {
+		host.getInFlight().incrementAndGet();
+		store.dispatched(webhook);
+		try {
+			service.submit(webhook, result -> {
+				try {
+					if (host.getBreaker() != null) {
+						host.getBreaker().record(result);
+					}
+					limit(host, result);
+					host.getConcurrency().record(result, host.getInFlight().get());
+					store.update(result);
+				} finally {
+					complete(host);
+				}
+			});
+		} catch (RuntimeException e) {
+			log.warn("Failed to submit webhook", e);
+			if (host.getBreaker() != null) {
+				host.getBreaker().record(false);
+			}
+			complete(host);
+			WebhookResult result = new WebhookResult(webhook);
+			result.setError(e);
+			store.update(result);
+		}
+	}
+
+	private void limit(HostQueue host, WebhookResult result) {
+		if (!result.hasResponse()) {
+			return;
+		}
+		if (result.getResponse().get().code() == 429) {
+			host.getLimiter().throttled(result.getRetryAfter());
+		} else if (result.isSuccessful()) {
+			host.getLimiter().succeeded();
+		} else {
+			host.getLimiter().pause(result.getRetryAfter());
+		}
+	}
+
+	private void complete(HostQueue host) {
+		host.getInFlight().decrementAndGet();
+		permits.release();
+		completions.release();
+	}
+
+	private void releaseBacklog() {
+		for (HostQueue host : rotation) {
+			Webhook webhook;
+			while ((webhook = host.poll()) != null) {
+				store.release(webhook);
+			}
+		}
+		backlog = 0;
+	}
+
+	private void register(HostQueue host) {
+		metrics.ifPresent((m) -> {
+			gauge(m, MetricRegistry.name("webhook.host", host.getHost(), "queued"), host::getDepth);
+			gauge(m, MetricRegistry.name("webhook.host", host.getHost(), "inflight"), host.getInFlight()::get);
+			gauge(m, MetricRegistry.name("webhook.host", host.getHost(), "limit"), host.getConcurrency()::getLimit);
+		});
+	}
+
+	/**
+	 * Register a gauge in place of any gauge of the same name, as services sharing a registry may serve the same host. A clash must not
+	 * stop the dispatch loop, so losing a race for the name only logs.
+	 */
+	private void gauge(MetricRegistry registry, String name, Gauge<Integer> gauge) {
+		registry.remove(name);
+		try {
+			registry.register(name, gauge);
+			gauges.put(name, gauge);
+		} catch (IllegalArgumentException e) {
+			log.warn("Metric {} already registered", name);
+		}
+	}
+
+	private void unregister(HostQueue host) {
+		metrics.ifPresent((m) -> {
+			for (String metric : new String[] { "queued", "inflight", "limit" }) {
+				// Only our own gauge, another service may have taken the name since
+				Gauge<Integer> gauge = gauges.remove(MetricRegistry.name("webhook.host", host.getHost(), metric));
+				if (gauge != null) {
+					m.removeMatching((name, registered) -> registered == gauge);
+				}
+			}
+		});
+	}
 
+	/**
+	 * Stop taking webhooks from the store, wait for in-flight webhooks to complete and hand the remaining queued webhooks back to the
+	 * store.
+	 * 
+	 * @param timeout
+	 * @param unit
+	 * @return true if every in-flight webhook completed before the deadline
+	 * @throws InterruptedException
+	 */
+	public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		running = false;
+		stopped.await(timeout, unit);
+
+		boolean drained = permits.tryAcquire(maxInFlight, Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+		if (drained) {
+			permits.release(maxInFlight);
+		}
+
+		List<Webhook> leftovers = new ArrayList<Webhook>();
+		store.getQueue().drainTo(leftovers);
+		leftovers.forEach(store::release);
+		return drained;
+	}
+
+	/**
+	 * @return the number of webhooks awaiting a result
+	 */
+	public int getInFlight() {
+		return maxInFlight - permits.availablePermits();
+	}
+
+	/**
+	 * @param host
+	 * @return the number of webhooks awaiting a result for the host
+	 */
+	public int getInFlight(String host) {
+		HostQueue queue = hosts.get(host);
+		return queue == null ? 0 : queue.getInFlight().get();
+	}
+
+	/**
+	 * @param host
+	 * @return the state of the circuit breaker for the host, closed if it has none
+	 */
+	public CircuitBreaker.State getCircuitState(String host) {
+		HostQueue queue = hosts.get(host);
+		return queue == null || queue.getBreaker() == null ? CircuitBreaker.State.CLOSED : queue.getBreaker().getState();
+	}
+
+	/**
+	 * @param host
+	 * @return the current rate limit of the host in requests a second, infinite if unlimited
+	 */
+	public double getRateLimit(String host) {
+		HostQueue queue = hosts.get(host);
+		return queue == null ? Double.POSITIVE_INFINITY : queue.getLimiter().getRate();
+	}
+
+	/**
+	 * @param host
+	 * @return the current in-flight limit of the host, the per host limit if it has no state
+	 */
+	public int getConcurrencyLimit(String host) {
+		HostQueue queue = hosts.get(host);
+		return queue == null ? maxInFlightPerHost : queue.getConcurrency().getLimit();
+	}
+
+	/**
+	 * @param host
+	 * @return the number of webhooks waiting for dispatch to the host
+	 */
+	public int getQueueDepth(String host) {
+		HostQueue queue = hosts.get(host);
+		return queue == null ? 0 : queue.getDepth();
 	}
 }
@@ -0,0 +1,126 @@
+package com.klatunetworks.webhooks.core;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.klatunetworks.webhooks.core.store.DeadLetter;
+import com.klatunetworks.webhooks.core.store.FileDeadLetterSink;
+import com.klatunetworks.webhooks.core.store.MemoryDeadLetterSink;
+import com.klatunetworks.webhooks.core.store.WebhookMemoryStore;
+import com.klatunetworks.webhooks.core.store.WebhookStore;
+
+public class DeadLetterSinkTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Webhook webhook(String host, int n) {
+		return new Webhook("http://" + host + "/hooks", "{\"n\":" + n + "}");
+	}
+
+	private WebhookResult failure(Webhook webhook) {
+		WebhookResult result = new WebhookResult(webhook);
+		result.setError(new IOException("refused"));
+		return result;
+	}
+
+	@Test
+	public void testExhaustedWebhooksAreDeadLettered() {
+		MemoryDeadLetterSink sink = new MemoryDeadLetterSink();
+		WebhookMemoryStore store = new WebhookMemoryStore(WebhookStore.newRetryLimiter(2, WebhookStore.newConstantBackoffFn(1,
+				TimeUnit.MILLISECONDS)));
+		store.setDeadLetterSink(sink);
+		Webhook webhook = webhook("a.com", 1);
+		store.add(webhook);
+
+		for (int i = 0; i < 2; i++) {
+			while (store.getQueue().isEmpty()) {
+				store.run();
+			}
+			store.update(failure(store.getQueue().poll()));
+		}
+
+		Assert.assertEquals(0, store.getDelayedWebhooks());
+		List<DeadLetter> letters = sink.query("a.com", 0, Long.MAX_VALUE);
+		Assert.assertEquals(1, letters.size());
+		Assert.assertSame(webhook, letters.get(0).getWebhook());
+		Assert.assertEquals(2, letters.get(0).getAttempts());
+		Assert.assertEquals("java.io.IOException: refused", letters.get(0).getReason());
+		Assert.assertTrue(sink.query("b.com", 0, Long.MAX_VALUE).isEmpty());
+	}
+
+	@Test
+	public void testFileSinkQueryAndRecovery() throws IOException {
+		Path path = folder.getRoot().toPath().resolve("dead.log");
+		FileDeadLetterSink sink = new FileDeadLetterSink(path);
+		for (int i = 0; i < 10; i++) {
+			sink.accept(new DeadLetter(webhook(i % 2 == 0 ? "a.com" : "b.com", i), 3, 0, 1000 + i, "HTTP 503"));
+		}
+		sink.close();
+
+		// A torn append is dropped on open
+		Files.write(path, new byte[] { 0, 0, 0, 100, 1, 2 }, StandardOpenOption.APPEND);
+		sink = new FileDeadLetterSink(path);
+		Assert.assertEquals(10, sink.query(null, 0, Long.MAX_VALUE).size());
+
+		List<DeadLetter> letters = sink.query("a.com", 1002, 1008);
+		Assert.assertEquals(3, letters.size());
+		Assert.assertEquals("{\"n\":2}", letters.get(0).getWebhook().getJson());
+		Assert.assertEquals(1006, letters.get(2).getDeadAt());
+		Assert.assertEquals("HTTP 503", letters.get(2).getReason());
+
+		sink.accept(new DeadLetter(webhook("a.com", 10), 3, 0, 1010, "HTTP 500"));
+		Assert.assertEquals(6, sink.query("a.com", 0, Long.MAX_VALUE).size());
+		sink.close();
+	}
+
+	@Test(timeout = 5000)
+	public void testFileSinkGroupsConcurrentLetters() throws Exception {
+		Path path = folder.getRoot().toPath().resolve("dead.log");
+		FileDeadLetterSink sink = new FileDeadLetterSink(path);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		for (int i = 0; i < 200; i++) {
+			int n = i;
+			executor.execute(() -> sink.accept(new DeadLetter(webhook("a.com", n), 3, 0, 1000 + n, "HTTP 503")));
+		}
+		executor.shutdown();
+		executor.awaitTermination(1, TimeUnit.SECONDS);
+
+		sink.flush();
+		Assert.assertEquals(200, sink.query("a.com", 0, Long.MAX_VALUE).size());
+		sink.close();
+		try (FileDeadLetterSink reopened = new FileDeadLetterSink(path)) {
+			Assert.assertEquals(200, reopened.query(null, 0, Long.MAX_VALUE).size());
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMemorySinkRequiresCapacity() {
+		new MemoryDeadLetterSink(0);
+	}
+
+	@Test(timeout = 5000)
+	public void testReplayIsRateLimited() throws InterruptedException {
+		MemoryDeadLetterSink sink = new MemoryDeadLetterSink();
+		for (int i = 0; i < 11; i++) {
+			sink.accept(new DeadLetter(webhook("a.com", i), 3, 0, 1000, "HTTP 503"));
+		}
+		WebhookMemoryStore store = new WebhookMemoryStore(WebhookStore.newConstantBackoffFn(1, TimeUnit.HOURS));
+
+		long start = System.nanoTime();
+		Assert.assertEquals(11, sink.replay("a.com", 0, Long.MAX_VALUE, store, 50));
+		Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(190));
+		Assert.assertEquals(11, store.getDelayedWebhooks());
+	}
+}
@@ -1,6 +1,141 @@
 package com.klatunetworks.webhooks.core;
 
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.klatunetworks.webhooks.core.store.BackoffStrategy;
+import com.klatunetworks.webhooks.core.store.WebhookMemoryStore;
+import com.klatunetworks.webhooks.core.store.WebhookStore;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Response;
 
 public class RetryFunctionBuilderTest {
 
+	private static final int SAMPLES = 10000;
+
+	@Test
+	public void testConstantAndLinear() {
+		BackoffStrategy constant = WebhookStore.newConstantBackoffFn(2, TimeUnit.SECONDS);
+		BackoffStrategy linear = WebhookStore.newLinearBackoffFn(2, TimeUnit.SECONDS);
+		Assert.assertEquals(2000l, constant.delay(2));
+		Assert.assertEquals(2000l, constant.delay(5));
+		Assert.assertEquals(2000l, linear.delay(2));
+		Assert.assertEquals(8000l, linear.delay(5));
+	}
+
+	@Test
+	public void testExponentialIsNotLinear() {
+		BackoffStrategy exponential = WebhookStore.newExponentialBackoffFn(1, TimeUnit.SECONDS);
+		Assert.assertEquals(1000l, exponential.delay(2));
+		Assert.assertEquals(2000l, exponential.delay(3));
+		Assert.assertEquals(4000l, exponential.delay(4));
+		Assert.assertEquals(512000l, exponential.delay(11));
+		Assert.assertEquals(Long.MAX_VALUE, exponential.delay(100));
+	}
+
+	@Test
+	public void testExponentialCap() {
+		BackoffStrategy exponential = BackoffStrategy.exponential(1, 60, TimeUnit.SECONDS);
+		Assert.assertEquals(32000l, exponential.delay(7));
+		Assert.assertEquals(60000l, exponential.delay(8));
+		Assert.assertEquals(60000l, exponential.delay(Integer.MAX_VALUE));
+	}
+
+	@Test
+	public void testRetryLimiter() {
+		BackoffStrategy limited = WebhookStore.newRetryLimiter(3, WebhookStore.newConstantBackoffFn(1, TimeUnit.SECONDS));
+		Assert.assertEquals(1000l, limited.delay(3));
+		Assert.assertTrue(limited.delay(4) <= 0);
+		Assert.assertTrue(BackoffStrategy.fullJitter(1, 10, TimeUnit.SECONDS).withMaxAttempts(2).delay(3, 1000) <= 0);
+	}
+
+	@Test
+	public void testFullJitterDistribution() {
+		BackoffStrategy jitter = BackoffStrategy.fullJitter(100, 10000, TimeUnit.MILLISECONDS);
+		// ceiling of 800ms for the 4th attempt
+		double sum = 0;
+		long min = Long.MAX_VALUE;
+		long max = 0;
+		for (int i = 0; i < SAMPLES; i++) {
+			long delay = jitter.delay(5);
+			Assert.assertTrue(delay >= 1 && delay <= 800);
+			sum += delay;
+			min = Math.min(min, delay);
+			max = Math.max(max, delay);
+		}
+		// uniform over the window: mean near the middle, both ends reached
+		Assert.assertEquals(400, sum / SAMPLES, 20);
+		Assert.assertTrue(min < 40);
+		Assert.assertTrue(max > 760);
+	}
+
+	@Test
+	public void testDecorrelatedJitterDistribution() {
+		BackoffStrategy jitter = BackoffStrategy.decorrelatedJitter(100, 1000, TimeUnit.MILLISECONDS);
+		double sum = 0;
+		for (int i = 0; i < SAMPLES; i++) {
+			long delay = jitter.delay(3, 200);
+			Assert.assertTrue(delay >= 100 && delay <= 600);
+			sum += delay;
+		}
+		Assert.assertEquals(350, sum / SAMPLES, 15);
+
+		// capped, and never below base
+		for (int i = 0; i < SAMPLES; i++) {
+			long delay = jitter.delay(10, 900);
+			Assert.assertTrue(delay >= 100 && delay <= 1000);
+		}
+		Assert.assertEquals(100l, BackoffStrategy.decorrelatedJitter(100, 100, TimeUnit.MILLISECONDS).delay(2, 0));
+	}
+
+	@Test
+	public void testRetryAfterExtendsDelay() {
+		WebhookMemoryStore store = new WebhookMemoryStore(WebhookStore.newConstantBackoffFn(1, TimeUnit.MILLISECONDS));
+		Webhook webhook = new Webhook("http://localhost/", "[]");
+		store.add(webhook);
+		store.run();
+		store.getQueue().clear();
+
+		WebhookResult result = new WebhookResult(webhook);
+		result.setResponse(new Response.Builder().request(webhook.toBuilder().build()).protocol(Protocol.HTTP_1_1).code(429)
+				.header("Retry-After", "120").build());
+		Assert.assertEquals(120000l, result.getRetryAfter());
+		store.update(result);
+
+		store.run();
+		Assert.assertEquals(0, store.getQueue().size());
+		Assert.assertEquals(1, store.getScheduledWebhooks());
+	}
+
+	@Test
+	public void testRetryAfterDate() {
+		Webhook webhook = new Webhook("http://localhost/", "[]");
+		String at = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC).plusMinutes(2));
+		Assert.assertEquals(120000, retryAfter(webhook, at), 2000);
+		Assert.assertEquals(0, retryAfter(webhook, "Sun, 06 Nov 1994 08:49:37 GMT"));
+		Assert.assertEquals(-1, retryAfter(webhook, "soon"));
+	}
+
+	private long retryAfter(Webhook webhook, String value) {
+		WebhookResult result = new WebhookResult(webhook);
+		result.setResponse(new Response.Builder().request(webhook.toBuilder().build()).protocol(Protocol.HTTP_1_1).code(503)
+				.header("Retry-After", value).build());
+		return result.getRetryAfter();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testFullJitterRequiresBase() {
+		BackoffStrategy.fullJitter(0, 1000, TimeUnit.MILLISECONDS);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testExponentialRequiresBase() {
+		// Would truncate to a delay of 0, which stops retrying after the first failure
+		WebhookStore.newExponentialBackoffFn(500, TimeUnit.MICROSECONDS);
+	}
 }
@@ -0,0 +1,150 @@
+package com.klatunetworks.webhooks.core;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.klatunetworks.webhooks.core.store.WebhookFileStore;
+import com.klatunetworks.webhooks.core.store.WebhookStore;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Response;
+
+import okio.ByteString;
+
+public class WebhookFileStoreTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private WebhookResult success(Webhook webhook) {
+		WebhookResult result = new WebhookResult(webhook);
+		result.setResponse(new Response.Builder().request(webhook.toBuilder().build()).protocol(Protocol.HTTP_1_1).code(200).build());
+		return result;
+	}
+
+	private WebhookResult failure(Webhook webhook) {
+		WebhookResult result = new WebhookResult(webhook);
+		result.setError(new IOException("test"));
+		return result;
+	}
+
+	private Webhook webhook(int n) {
+		Webhook webhook = new Webhook("http://localhost/" + n, "{\"n\":" + n + "}");
+		webhook.setHeader("X-Test", String.valueOf(n));
+		return webhook;
+	}
+
+	@Test
+	public void testRecoversPendingWebhooks() throws IOException {
+		Path dir = folder.getRoot().toPath();
+		WebhookFileStore store = new WebhookFileStore(dir, WebhookStore.newConstantBackoffFn(1, TimeUnit.HOURS));
+		Webhook delivered = webhook(1);
+		Webhook failed = webhook(2);
+		store.add(delivered);
+		store.add(failed);
+		store.add(webhook(3));
+		store.run();
+		store.getQueue().clear();
+
+		store.update(success(delivered));
+		store.update(failure(failed));
+		store.close();
+
+		WebhookFileStore recovered = new WebhookFileStore(dir, WebhookStore.newConstantBackoffFn(1, TimeUnit.HOURS));
+		Assert.assertEquals(2, recovered.getDelayedWebhooks());
+
+		// the failed webhook is parked for an hour, the undelivered one is due immediately
+		recovered.run();
+		Assert.assertEquals(1, recovered.getQueue().size());
+		Webhook webhook = recovered.getQueue().poll();
+		Assert.assertEquals("http://localhost/3", webhook.getUrl());
+		Assert.assertEquals("{\"n\":3}", webhook.getJson());
+		Assert.assertEquals("3", webhook.getHeaders().get("X-Test"));
+		recovered.close();
+	}
+
+	@Test(timeout = 5000)
+	public void testCompactsAckedSegments() throws IOException, InterruptedException {
+		Path dir = folder.getRoot().toPath();
+		WebhookFileStore store = new WebhookFileStore(dir, 1024, WebhookStore.newConstantBackoffFn(1, TimeUnit.HOURS));
+		List<Webhook> webhooks = new ArrayList<Webhook>();
+		for (int i = 0; i < 100; i++) {
+			Webhook webhook = webhook(i);
+			webhooks.add(webhook);
+			store.add(webhook);
+		}
+		store.run();
+		Assert.assertTrue(store.getSegmentCount() > 1);
+
+		for (Webhook webhook : webhooks) {
+			store.update(success(webhook));
+		}
+		// Compaction runs in the background
+		store.run();
+		while (store.getSegmentCount() > 1) {
+			Thread.sleep(1);
+		}
+		store.close();
+
+		WebhookFileStore recovered = new WebhookFileStore(dir, 1024, WebhookStore.newConstantBackoffFn(1, TimeUnit.HOURS));
+		Assert.assertEquals(0, recovered.getDelayedWebhooks());
+		recovered.close();
+	}
+
+	@Test
+	public void testCompactsAroundParkedWebhook() throws IOException {
+		Path dir = folder.getRoot().toPath();
+		WebhookFileStore store = new WebhookFileStore(dir, 1024, WebhookStore.newConstantBackoffFn(1, TimeUnit.HOURS));
+		// Parked for an hour in the first segment
+		Webhook parked = webhook(0);
+		store.add(parked);
+		store.run();
+		store.update(failure(store.getQueue().poll()));
+
+		for (int i = 1; i < 100; i++) {
+			Webhook webhook = webhook(i);
+			store.add(webhook);
+			store.update(success(webhook));
+		}
+		store.compact();
+		Assert.assertEquals(1, store.getSegmentCount());
+		store.close();
+
+		WebhookFileStore recovered = new WebhookFileStore(dir, 1024, WebhookStore.newConstantBackoffFn(1, TimeUnit.HOURS));
+		Assert.assertEquals(1, recovered.getDelayedWebhooks());
+		// Still parked after its first attempt
+		recovered.run();
+		Assert.assertEquals(0, recovered.getQueue().size());
+		recovered.close();
+	}
+
+	@Test
+	public void testRejectedAddLeavesNoEntry() throws IOException {
+		Path dir = folder.getRoot().toPath();
+		WebhookFileStore store = new WebhookFileStore(dir, 1024, WebhookStore.newConstantBackoffFn(1, TimeUnit.HOURS));
+		StringBuilder large = new StringBuilder("[0");
+		while (large.length() < 2048) {
+			large.append(",0");
+		}
+		Webhook oversized = new Webhook("http://localhost/1", large.append("]").toString());
+		try {
+			store.add(oversized);
+			Assert.fail("Expected the webhook not to fit in a segment");
+		} catch (IllegalArgumentException e) {
+			Assert.assertEquals(0, store.getDelayedWebhooks());
+		}
+
+		// A smaller resubmission is not suppressed by the rejected one
+		store.add(new Webhook(oversized.getId(), oversized.getUrl(), ByteString.encodeUtf8("[]"), WebhookHeaders.EMPTY));
+		store.run();
+		Assert.assertEquals(1, store.getQueue().size());
+		store.close();
+	}
+}
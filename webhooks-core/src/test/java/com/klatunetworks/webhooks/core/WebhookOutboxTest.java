@@ -0,0 +1,121 @@
+package com.klatunetworks.webhooks.core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.klatunetworks.webhooks.core.store.OverflowPolicy;
+import com.klatunetworks.webhooks.core.store.WebhookMemoryStore;
+import com.klatunetworks.webhooks.core.store.WebhookOutbox;
+import com.klatunetworks.webhooks.core.store.WebhookStore;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Response;
+
+public class WebhookOutboxTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Webhook webhook(int n) {
+		return new Webhook("http://localhost/" + n, "[" + n + "]");
+	}
+
+	@Test
+	public void testReject() {
+		WebhookOutbox outbox = new WebhookOutbox(2, OverflowPolicy.REJECT);
+		Assert.assertTrue(outbox.offer(webhook(1)));
+		Assert.assertTrue(outbox.offer(webhook(2)));
+		Assert.assertFalse(outbox.offer(webhook(3)));
+		Assert.assertEquals(2, outbox.getQueue().size());
+	}
+
+	@Test
+	public void testDropOldest() {
+		List<Webhook> dropped = new ArrayList<Webhook>();
+		WebhookOutbox outbox = new WebhookOutbox(2, OverflowPolicy.DROP_OLDEST);
+		outbox.setDropListener(dropped::add);
+		Webhook first = webhook(1);
+		outbox.offer(first);
+		outbox.offer(webhook(2));
+		Assert.assertTrue(outbox.offer(webhook(3)));
+		Assert.assertEquals(1, dropped.size());
+		Assert.assertSame(first, dropped.get(0));
+		Assert.assertEquals(2, outbox.getQueue().size());
+	}
+
+	@Test
+	public void testSpill() throws IOException {
+		WebhookOutbox outbox = new WebhookOutbox(2, folder.newFile().toPath());
+		for (int i = 0; i < 5; i++) {
+			Assert.assertTrue(outbox.offer(webhook(i)));
+		}
+		Assert.assertEquals(2, outbox.getQueue().size());
+		Assert.assertEquals(3, outbox.getSpilled());
+
+		// Taking from the queue reads spilled webhooks back in order
+		for (int i = 0; i < 5; i++) {
+			Assert.assertEquals("[" + i + "]", outbox.getQueue().poll().getJson());
+		}
+		Assert.assertEquals(0, outbox.getSpilled());
+		outbox.close();
+	}
+
+	@Test
+	public void testStoreMatchesSpilledCopies() throws IOException {
+		WebhookMemoryStore store = new WebhookMemoryStore(WebhookStore.newConstantBackoffFn(1, TimeUnit.HOURS),
+				new WebhookOutbox(1, folder.newFile().toPath()));
+		for (int i = 0; i < 3; i++) {
+			store.add(webhook(i));
+		}
+		store.run();
+		Assert.assertEquals(2, store.getOutbox().getSpilled());
+
+		for (int i = 0; i < 3; i++) {
+			Webhook webhook = store.getQueue().poll();
+			store.dispatched(webhook);
+			WebhookResult result = new WebhookResult(webhook);
+			result.setResponse(new Response.Builder().request(webhook.toBuilder().build()).protocol(Protocol.HTTP_1_1).code(200).build());
+			store.update(result);
+		}
+		Assert.assertEquals(0, store.getDelayedWebhooks());
+		store.getOutbox().close();
+	}
+
+	@Test
+	public void testStoreKeepsWebhooksScheduledWhenSpillFails() throws IOException {
+		WebhookMemoryStore store = new WebhookMemoryStore(WebhookStore.newConstantBackoffFn(1, TimeUnit.HOURS),
+				new WebhookOutbox(1, folder.newFile().toPath()));
+		store.getOutbox().close();
+		for (int i = 0; i < 3; i++) {
+			store.add(webhook(i));
+		}
+
+		store.run();
+		Assert.assertEquals(1, store.getQueue().size());
+		Assert.assertEquals(2, store.getScheduledWebhooks());
+	}
+
+	@Test
+	public void testStoreKeepsRejectedWebhooksScheduled() {
+		WebhookMemoryStore store = new WebhookMemoryStore(WebhookStore.newConstantBackoffFn(1, TimeUnit.HOURS),
+				new WebhookOutbox(2, OverflowPolicy.REJECT));
+		for (int i = 0; i < 5; i++) {
+			store.add(webhook(i));
+		}
+
+		store.run();
+		Assert.assertEquals(2, store.getQueue().size());
+		Assert.assertEquals(3, store.getScheduledWebhooks());
+
+		store.getQueue().clear();
+		store.run();
+		Assert.assertEquals(2, store.getQueue().size());
+		Assert.assertEquals(1, store.getScheduledWebhooks());
+	}
+}
@@ -1,17 +1,49 @@
 package com.klatunetworks.webhooks.core;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.IntSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.codahale.metrics.MetricRegistry;
+import com.klatunetworks.webhooks.core.store.BackoffStrategy;
+import com.klatunetworks.webhooks.core.store.CircuitBreaker;
+import com.klatunetworks.webhooks.core.store.ConcurrencyLimiter;
+import com.klatunetworks.webhooks.core.store.DuplicateFilter;
+import com.klatunetworks.webhooks.core.store.OverflowPolicy;
+import com.klatunetworks.webhooks.core.store.RateLimiter;
+import com.klatunetworks.webhooks.core.store.WebhookCompactStore;
 import com.klatunetworks.webhooks.core.store.WebhookMemoryStore;
+import com.klatunetworks.webhooks.core.store.WebhookOutbox;
+import com.klatunetworks.webhooks.core.store.WebhookStore;
 import com.klatunetworks.webhooks.core.store.WebhookStoreService;
 import com.klatunetworks.webhooks.support.TestWithMockServer;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
 import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+import okio.ByteString;
 
 public class WebhookStoreTest extends TestWithMockServer {
 
@@ -47,4 +79,607 @@ public class WebhookStoreTest extends TestWithMockServer {
 		Assert.assertEquals(0, store.getDelayedWebhooks());
 	}
 
+	@Test
+	public void testScheduleReleasesOnlyDueWebhooks() {
+		WebhookMemoryStore store = new WebhookMemoryStore(WebhookStore.newConstantBackoffFn(1, TimeUnit.HOURS));
+		Webhook parked = webhook();
+		Webhook due = webhook();
+		store.add(parked);
+		store.add(due);
+
+		store.run();
+		Assert.assertEquals(2, store.getQueue().size());
+		Assert.assertEquals(0, store.getScheduledWebhooks());
+		store.getQueue().clear();
+
+		WebhookResult failure = new WebhookResult(parked);
+		failure.setError(new IOException("test"));
+		store.update(failure);
+
+		// parked for an hour, so the tick must leave it in the schedule
+		store.run();
+		Assert.assertEquals(0, store.getQueue().size());
+		Assert.assertEquals(1, store.getScheduledWebhooks());
+		Assert.assertEquals(2, store.getDelayedWebhooks());
+	}
+
+	@Test
+	public void testDelayedReleaseIsNotAnAttempt() throws InterruptedException {
+		BackoffStrategy twoAttempts = (n) -> n > 2 ? -1 : 1l;
+		WebhookMemoryStore memory = new WebhookMemoryStore(twoAttempts);
+		assertDelayedRelease(memory, memory, memory::getDelayedWebhooks);
+		WebhookCompactStore compact = new WebhookCompactStore(twoAttempts);
+		assertDelayedRelease(compact, compact, compact::getDelayedWebhooks);
+	}
+
+	private static WebhookResult ok(Webhook webhook) {
+		WebhookResult result = new WebhookResult(webhook);
+		result.setResponse(new Response.Builder().request(webhook.toBuilder().build()).protocol(Protocol.HTTP_1_1).code(200).build());
+		return result;
+	}
+
+	private void assertDelayedRelease(WebhookStore store, Runnable tick, IntSupplier delayed) throws InterruptedException {
+		Webhook webhook = webhook();
+		store.add(webhook);
+		tick.run();
+		store.release(store.getQueue().take(), 50, TimeUnit.MILLISECONDS);
+
+		// Held back for the delay
+		tick.run();
+		Assert.assertEquals(0, store.getQueue().size());
+		Thread.sleep(60);
+		tick.run();
+
+		// Still the first attempt, so its failure is retried
+		WebhookResult failure = new WebhookResult(store.getQueue().take());
+		failure.setError(new IOException("test"));
+		store.update(failure);
+		Assert.assertEquals(1, delayed.getAsInt());
+	}
+
+	@Test(timeout = 10000)
+	public void testConcurrentUpdatesDispatchEachAttemptOnce() throws InterruptedException {
+		int numWebhooks = 2000;
+		int numThreads = 8;
+		WebhookMemoryStore store = new WebhookMemoryStore(WebhookStore.newRetryLimiter(3, (n) -> 1l));
+		Map<Webhook, AtomicInteger> dispatches = new ConcurrentHashMap<Webhook, AtomicInteger>();
+		for (int i = 0; i < numWebhooks; i++) {
+			Webhook webhook = webhook();
+			dispatches.put(webhook, new AtomicInteger());
+			store.add(webhook);
+		}
+
+		ExecutorService completions = Executors.newFixedThreadPool(numThreads);
+		for (int i = 0; i < numThreads; i++) {
+			completions.submit(() -> {
+				try {
+					while (true) {
+						Webhook webhook = store.getQueue().take();
+						store.dispatched(webhook);
+						dispatches.get(webhook).incrementAndGet();
+						WebhookResult result = new WebhookResult(webhook);
+						result.setError(new IOException("test"));
+						store.update(result);
+					}
+				} catch (InterruptedException e) {
+				}
+			});
+		}
+
+		while (store.getDelayedWebhooks() > 0) {
+			store.run();
+			Thread.sleep(1);
+		}
+		completions.shutdownNow();
+
+		Assert.assertEquals(0, store.getScheduledWebhooks());
+		dispatches.forEach((webhook, count) -> Assert.assertEquals(3, count.get()));
+	}
+
+	@Test(timeout = 5000)
+	public void testServiceLimitsInFlightAndReleasesLeftovers() throws InterruptedException {
+		WebhookMemoryStore store = new WebhookMemoryStore(WebhookStore.newConstantBackoffFn(1, TimeUnit.HOURS));
+		List<Consumer<WebhookResult>> pending = new CopyOnWriteArrayList<Consumer<WebhookResult>>();
+		WebhookStoreService service = new WebhookStoreService((webhook, callback) -> pending.add(callback), store, 2, 2, null);
+		for (int i = 0; i < 10; i++) {
+			service.submit(webhook());
+		}
+		store.run();
+		Assert.assertEquals(0, store.getScheduledWebhooks());
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		executor.submit(service);
+		while (pending.size() < 2) {
+			Thread.sleep(1);
+		}
+		Thread.sleep(50);
+		Assert.assertEquals(2, pending.size());
+		Assert.assertEquals(2, service.getInFlight());
+
+		// in-flight webhooks never complete, the rest go back to the schedule
+		Assert.assertFalse(service.shutdown(200, TimeUnit.MILLISECONDS));
+		Assert.assertEquals(8, store.getScheduledWebhooks());
+		Assert.assertEquals(0, store.getQueue().size());
+		executor.shutdown();
+	}
+
+	@Test(timeout = 5000)
+	public void testSlowHostDoesNotStarveOthers() throws InterruptedException {
+		WebhookMemoryStore store = new WebhookMemoryStore(WebhookStore.newConstantBackoffFn(1, TimeUnit.HOURS));
+		List<Webhook> dispatched = new CopyOnWriteArrayList<Webhook>();
+		MetricRegistry metrics = new MetricRegistry();
+		// nothing ever completes, like a host which hangs every connection
+		WebhookStoreService service = new WebhookStoreService((webhook, callback) -> dispatched.add(webhook), store, 10, 2, metrics);
+		for (int i = 0; i < 20; i++) {
+			service.submit(new Webhook("http://slow.test/" + i, "[]"));
+		}
+		for (int i = 0; i < 5; i++) {
+			service.submit(new Webhook("http://fast.test/" + i, "[]"));
+		}
+		store.run();
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		executor.submit(service);
+		while (dispatched.size() < 4) {
+			Thread.sleep(1);
+		}
+		Thread.sleep(50);
+
+		Assert.assertEquals(4, dispatched.size());
+		Assert.assertEquals(2, service.getInFlight("slow.test"));
+		Assert.assertEquals(2, service.getInFlight("fast.test"));
+		Assert.assertEquals(18, service.getQueueDepth("slow.test"));
+		Assert.assertEquals(18, metrics.getGauges().get("webhook.host.slow.test.queued").getValue());
+
+		service.shutdown(10, TimeUnit.MILLISECONDS);
+		executor.shutdown();
+	}
+
+	@Test(timeout = 5000)
+	public void testServicesShareRegistry() throws InterruptedException {
+		MetricRegistry metrics = new MetricRegistry();
+		List<Webhook> first = new CopyOnWriteArrayList<Webhook>();
+		List<Webhook> second = new CopyOnWriteArrayList<Webhook>();
+		WebhookMemoryStore firstStore = new WebhookMemoryStore(WebhookStore.newConstantBackoffFn(1, TimeUnit.HOURS));
+		WebhookMemoryStore secondStore = new WebhookMemoryStore(WebhookStore.newConstantBackoffFn(1, TimeUnit.HOURS));
+		WebhookStoreService firstService = new WebhookStoreService((webhook, callback) -> first.add(webhook), firstStore, 10, 1, metrics);
+		WebhookStoreService secondService = new WebhookStoreService((webhook, callback) -> second.add(webhook), secondStore, 10, 1,
+				metrics);
+		for (int i = 0; i < 3; i++) {
+			firstService.submit(new Webhook("http://shared.test/" + i, "[]"));
+		}
+		for (int i = 0; i < 5; i++) {
+			secondService.submit(new Webhook("http://shared.test/" + i, "[]"));
+		}
+		firstStore.run();
+		secondStore.run();
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		executor.submit(firstService);
+		while (first.isEmpty()) {
+			Thread.sleep(1);
+		}
+		// The same host gauges again, which must not stop the second service
+		executor.submit(secondService);
+		while (second.isEmpty()) {
+			Thread.sleep(1);
+		}
+		Thread.sleep(20);
+
+		Assert.assertEquals(1, first.size());
+		Assert.assertEquals(1, second.size());
+		Assert.assertEquals(4, metrics.getGauges().get("webhook.host.shared.test.queued").getValue());
+
+		firstService.shutdown(10, TimeUnit.MILLISECONDS);
+		secondService.shutdown(10, TimeUnit.MILLISECONDS);
+		executor.shutdown();
+	}
+
+	@Test(timeout = 5000)
+	public void testRotationResumesAfterLastHostServed() throws InterruptedException {
+		WebhookMemoryStore store = new WebhookMemoryStore(WebhookStore.newConstantBackoffFn(1, TimeUnit.HOURS));
+		List<Consumer<WebhookResult>> slow = new CopyOnWriteArrayList<Consumer<WebhookResult>>();
+		AtomicInteger fast = new AtomicInteger();
+		// One host may hold every permit, the other answers at once
+		WebhookStoreService service = new WebhookStoreService((webhook, callback) -> {
+			if (webhook.getHost().equals("slow.test")) {
+				slow.add(callback);
+				return;
+			}
+			fast.incrementAndGet();
+			callback.accept(ok(webhook));
+		}, store, 4, 4, null);
+		for (int i = 0; i < 20; i++) {
+			service.submit(new Webhook("http://slow.test/" + i, "[]"));
+		}
+		for (int i = 0; i < 5; i++) {
+			service.submit(new Webhook("http://fast.test/" + i, "[]"));
+		}
+		store.run();
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		executor.submit(service);
+		while (slow.size() < 4) {
+			Thread.sleep(1);
+		}
+		Thread.sleep(20);
+		Assert.assertEquals(3, fast.get());
+
+		// Each permit the slow host frees goes to the fast host, whose turn it was
+		for (int i = 0; i < 2; i++) {
+			slow.get(i).accept(ok(new Webhook("http://slow.test/" + i, "[]")));
+			while (slow.size() < 5 + i) {
+				Thread.sleep(1);
+			}
+		}
+		Thread.sleep(20);
+		Assert.assertEquals(5, fast.get());
+		Assert.assertEquals(6, slow.size());
+
+		service.shutdown(10, TimeUnit.MILLISECONDS);
+		executor.shutdown();
+	}
+
+	@Test(timeout = 5000)
+	public void testCircuitBreakerParksWebhooksForDeadHost() throws InterruptedException {
+		WebhookMemoryStore store = new WebhookMemoryStore(WebhookStore.newConstantBackoffFn(1, TimeUnit.HOURS));
+		AtomicBoolean up = new AtomicBoolean(false);
+		List<Webhook> dispatched = new CopyOnWriteArrayList<Webhook>();
+		WebhookStoreService service = new WebhookStoreService((webhook, callback) -> {
+			dispatched.add(webhook);
+			WebhookResult result = new WebhookResult(webhook);
+			if (up.get()) {
+				result.setResponse(
+						new Response.Builder().request(webhook.toBuilder().build()).protocol(Protocol.HTTP_1_1).code(200).build());
+			} else {
+				result.setError(new IOException("connect timed out"));
+			}
+			callback.accept(result);
+		}, store, 1, 1, null);
+		service.setCircuitBreakers(() -> new CircuitBreaker(0.5, 4, 100, TimeUnit.MILLISECONDS));
+
+		for (int i = 0; i < 20; i++) {
+			service.submit(new Webhook("http://down.test/" + i, "[]"));
+		}
+		store.run();
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		executor.submit(service);
+		while (service.getCircuitState("down.test") != CircuitBreaker.State.OPEN) {
+			Thread.sleep(1);
+		}
+		Thread.sleep(20);
+
+		// opened after 4 failures, the rest are parked without network calls
+		Assert.assertEquals(4, dispatched.size());
+		Assert.assertEquals(16, service.getQueueDepth("down.test"));
+
+		// the probe succeeds after the open period and releases every parked webhook
+		up.set(true);
+		while (dispatched.size() < 20 || service.getInFlight() > 0) {
+			Thread.sleep(1);
+		}
+		Assert.assertEquals(CircuitBreaker.State.CLOSED, service.getCircuitState("down.test"));
+		Assert.assertEquals(4, store.getDelayedWebhooks());
+
+		service.shutdown(10, TimeUnit.MILLISECONDS);
+		executor.shutdown();
+	}
+
+	@Test(timeout = 5000)
+	public void testOverflowOfSaturatedHostIsHeldBack() throws InterruptedException {
+		AtomicInteger released = new AtomicInteger();
+		WebhookMemoryStore store = new WebhookMemoryStore(WebhookStore.newConstantBackoffFn(1, TimeUnit.HOURS)) {
+			@Override
+			public void release(Webhook webhook, long delay, TimeUnit unit) {
+				released.incrementAndGet();
+				super.release(webhook, delay, unit);
+			}
+		};
+		// The host never answers, so its backlog stays full
+		WebhookStoreService service = new WebhookStoreService((webhook, callback) -> {
+		}, store, 1, 1, null);
+		for (int i = 0; i < 300; i++) {
+			service.submit(new Webhook("http://stuck.test/" + i, "[]"));
+		}
+
+		ScheduledExecutorService executor = Executors.newScheduledThreadPool(2);
+		executor.scheduleAtFixedRate(store, 0, 1, TimeUnit.MILLISECONDS);
+		executor.submit(service);
+		Thread.sleep(250);
+		service.shutdown(10, TimeUnit.MILLISECONDS);
+		executor.shutdown();
+
+		// 43 webhooks overflow, and each is offered again a few times rather than on every tick
+		Assert.assertTrue(released.get() >= 43);
+		Assert.assertTrue(String.valueOf(released.get()), released.get() < 43 * 5);
+	}
+
+	@Test
+	public void testStoreCapacity() {
+		WebhookMemoryStore memory = new WebhookMemoryStore(WebhookStore.newConstantBackoffFn(1, TimeUnit.HOURS));
+		memory.setCapacity(2);
+		assertCapacity(memory, memory);
+		WebhookCompactStore compact = new WebhookCompactStore(WebhookStore.newConstantBackoffFn(1, TimeUnit.HOURS));
+		compact.setCapacity(2);
+		assertCapacity(compact, compact);
+	}
+
+	private void assertCapacity(WebhookStore store, Runnable tick) {
+		Webhook first = webhook();
+		WebhookStoreService service = new WebhookStoreService(new WebhookService(), store);
+		Assert.assertTrue(service.offer(first));
+		Assert.assertTrue(service.offer(webhook()));
+		Assert.assertFalse(service.offer(webhook()));
+		try {
+			service.submit(webhook());
+			Assert.fail("Expected a full store to reject the webhook");
+		} catch (RejectedExecutionException e) {
+		}
+		// A duplicate is suppressed rather than rejected
+		Assert.assertTrue(service.offer(first));
+
+		// Delivered webhooks make room
+		tick.run();
+		WebhookResult result = new WebhookResult(store.getQueue().poll());
+		result.setResponse(new Response.Builder().request(result.getWebhook().toBuilder().build()).protocol(Protocol.HTTP_1_1).code(200)
+				.build());
+		store.update(result);
+		Assert.assertTrue(service.offer(webhook()));
+	}
+
+	@Test
+	public void testDuplicateSuppression() throws InterruptedException {
+		WebhookMemoryStore store = new WebhookMemoryStore(WebhookStore.newConstantBackoffFn(1, TimeUnit.HOURS));
+		store.setDuplicateFilter(new DuplicateFilter(200, TimeUnit.MILLISECONDS, 1000, 0.001));
+		Webhook webhook = new Webhook("event-1", getServerUrl(), ByteString.encodeUtf8("{}"), new HashMap<String, String>());
+		Webhook resubmitted = new Webhook("event-1", getServerUrl(), ByteString.encodeUtf8("{}"), new HashMap<String, String>());
+		Webhook otherUrl = new Webhook("event-1", getServerUrl() + "/other", ByteString.encodeUtf8("{}"), new HashMap<String, String>());
+		Assert.assertEquals(webhook, resubmitted);
+
+		store.add(webhook);
+		store.add(resubmitted);
+		store.add(otherUrl);
+		Assert.assertEquals(2, store.getDelayedWebhooks());
+		Assert.assertEquals(1, store.getSuppressedWebhooks());
+
+		// Delivered, but still within the window
+		store.update(new WebhookResult(resubmitted) {
+			public boolean isSuccessful() {
+				return true;
+			}
+		});
+		Assert.assertEquals(1, store.getDelayedWebhooks());
+		store.add(resubmitted);
+		Assert.assertEquals(1, store.getDelayedWebhooks());
+		Assert.assertEquals(2, store.getSuppressedWebhooks());
+
+		Thread.sleep(300);
+		store.add(resubmitted);
+		Assert.assertEquals(2, store.getDelayedWebhooks());
+	}
+
+	@Test
+	public void testDuplicateFilterFalsePositives() {
+		DuplicateFilter filter = new DuplicateFilter(1, TimeUnit.HOURS, 100000, 0.01);
+		int duplicates = 0;
+		for (int i = 0; i < 100000; i++) {
+			duplicates += filter.add(webhook()) ? 0 : 1;
+		}
+		Assert.assertTrue("false positives: " + duplicates, duplicates < 1000);
+	}
+
+	@Test(timeout = 1000)
+	public void testServiceWithCompactStore() throws IOException, InterruptedException {
+		WebhookCompactStore store = new WebhookCompactStore((n) -> n > 5 ? -1 : 1l);
+		server.enqueue(new MockResponse().setResponseCode(503));
+		server.enqueue(new MockResponse().setResponseCode(503));
+		server.enqueue(new MockResponse().setResponseCode(200));
+
+		WebhookStoreService service = new WebhookStoreService(new WebhookService(), store);
+		service.submit(webhook());
+		Assert.assertEquals(1, store.getDelayedWebhooks());
+
+		ScheduledExecutorService executor = Executors.newScheduledThreadPool(2);
+		executor.scheduleAtFixedRate(store, 0, 1, TimeUnit.MILLISECONDS);
+		executor.submit(service);
+		for (int i = 0; i < 3; i++) {
+			server.takeRequest();
+		}
+		while (store.getDelayedWebhooks() > 0) {
+			Thread.sleep(5);
+		}
+		executor.shutdownNow();
+		Assert.assertEquals(0, store.getQueue().size());
+	}
+
+	@Test
+	public void testCompactStoreSlots() {
+		WebhookCompactStore store = new WebhookCompactStore(WebhookStore.newConstantBackoffFn(1, TimeUnit.HOURS),
+				new WebhookOutbox(100000, OverflowPolicy.REJECT));
+		List<Webhook> webhooks = new ArrayList<Webhook>();
+		for (int i = 0; i < 10000; i++) {
+			Webhook webhook = new Webhook(getServerUrl() + "/" + (i % 7), "[" + i + "]");
+			webhook.setHeader("X-Seq", String.valueOf(i));
+			webhooks.add(webhook);
+			store.add(webhook);
+		}
+		store.run();
+		Assert.assertEquals(10000, store.getQueue().size());
+
+		// Deliver the odd webhooks, park the even ones for an hour
+		Webhook webhook;
+		while ((webhook = store.getQueue().poll()) != null) {
+			int seq = Integer.parseInt(webhook.getHeaders().get("X-Seq"));
+			Assert.assertEquals("[" + seq + "]", webhook.getJson());
+			Assert.assertEquals(webhooks.get(seq), webhook);
+			store.dispatched(webhook);
+			WebhookResult result = new WebhookResult(webhook);
+			if (seq % 2 == 1) {
+				result.setResponse(
+						new Response.Builder().request(webhook.toBuilder().build()).protocol(Protocol.HTTP_1_1).code(200).build());
+			} else {
+				result.setError(new IOException("test"));
+			}
+			store.update(result);
+		}
+		Assert.assertEquals(5000, store.getDelayedWebhooks());
+		Assert.assertEquals(5000, store.getScheduledWebhooks());
+		store.run();
+		Assert.assertEquals(0, store.getQueue().size());
+
+		// Parked webhooks are still found, delivered slots are free for reuse
+		for (Webhook resubmitted : webhooks) {
+			store.add(resubmitted);
+		}
+		Assert.assertEquals(10000, store.getDelayedWebhooks());
+		Assert.assertEquals(5000, store.getSuppressedWebhooks());
+	}
+
+	@Test
+	public void testRateLimiter() throws InterruptedException {
+		RateLimiter limiter = new RateLimiter(10, 2);
+		Assert.assertTrue(limiter.tryAcquire());
+		Assert.assertTrue(limiter.tryAcquire());
+		Assert.assertFalse(limiter.tryAcquire());
+		Thread.sleep(120);
+		Assert.assertTrue(limiter.tryAcquire());
+
+		RateLimiter unlimited = RateLimiter.unlimited();
+		for (int i = 0; i < 1000; i++) {
+			Assert.assertTrue(unlimited.tryAcquire());
+		}
+		unlimited.throttled(100);
+		Assert.assertFalse(unlimited.tryAcquire());
+		Assert.assertTrue(unlimited.isThrottled());
+		Assert.assertTrue(unlimited.getRate() < Double.POSITIVE_INFINITY);
+		Thread.sleep(120);
+		Assert.assertTrue(unlimited.tryAcquire());
+	}
+
+	@Test
+	public void testRateLimiterLearnsFromRecentRate() throws InterruptedException {
+		// A quiet limiter which bursts is cut from the burst rate, not the average since it was created
+		RateLimiter limiter = RateLimiter.unlimited();
+		Thread.sleep(2100);
+		for (int i = 0; i < 1000; i++) {
+			Assert.assertTrue(limiter.tryAcquire());
+		}
+		limiter.throttled(0);
+		Assert.assertTrue(limiter.isThrottled());
+		Assert.assertTrue("rate " + limiter.getRate(), limiter.getRate() > 1000);
+	}
+
+	@Test(timeout = 5000)
+	public void testRetryAfterDefersDispatch() throws InterruptedException {
+		server.enqueue(new MockResponse().setResponseCode(429).setHeader("Retry-After", "1"));
+		server.enqueue(new MockResponse().setResponseCode(200));
+		server.enqueue(new MockResponse().setResponseCode(200));
+
+		// The store would retry after a millisecond, the host's limiter holds both webhooks until the Retry-After
+		WebhookMemoryStore store = new WebhookMemoryStore((n) -> 1l);
+		WebhookStoreService service = new WebhookStoreService(new WebhookService(), store);
+		ScheduledExecutorService executor = Executors.newScheduledThreadPool(2);
+		executor.scheduleAtFixedRate(store, 0, 1, TimeUnit.MILLISECONDS);
+		executor.submit(service);
+
+		service.submit(webhook());
+		server.takeRequest();
+		long throttledAt = System.nanoTime();
+		service.submit(webhook());
+		server.takeRequest();
+		server.takeRequest();
+		Assert.assertTrue(System.nanoTime() - throttledAt >= TimeUnit.MILLISECONDS.toNanos(900));
+		Assert.assertTrue(service.getRateLimit(new Webhook(getServerUrl(), "{}").getHost()) < Double.POSITIVE_INFINITY);
+
+		service.shutdown(1, TimeUnit.SECONDS);
+		executor.shutdownNow();
+	}
+
+	@Test(timeout = 10000)
+	public void testConcurrencyLimitFollowsDegradingHost() throws InterruptedException {
+		// The receiver logs every request, quiet it for this test only
+		Logger serverLog = Logger.getLogger(MockWebServer.class.getName());
+		Level level = serverLog.getLevel();
+		serverLog.setLevel(Level.WARNING);
+		try {
+			// A receiver with a number of workers, each request takes 10ms and queues once the workers are busy
+			AtomicInteger workers = new AtomicInteger(16);
+			AtomicInteger active = new AtomicInteger();
+			server.setDispatcher(new Dispatcher() {
+				@Override
+				public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+					int concurrent = active.incrementAndGet();
+					try {
+						Thread.sleep(10 * Math.max(1, concurrent / workers.get()));
+						return new MockResponse().setResponseCode(200);
+					} finally {
+						active.decrementAndGet();
+					}
+				}
+			});
+			OkHttpClient client = new OkHttpClient();
+			client.getDispatcher().setMaxRequests(64);
+			client.getDispatcher().setMaxRequestsPerHost(64);
+
+			WebhookMemoryStore store = new WebhookMemoryStore(WebhookStore.newConstantBackoffFn(1, TimeUnit.MILLISECONDS));
+			WebhookStoreService service = new WebhookStoreService(new WebhookService(client), store, 64, 64, null);
+			service.setConcurrencyLimiters((host) -> new ConcurrencyLimiter(4, 1, 64));
+			for (int i = 0; i < 20000; i++) {
+				service.submit(webhook());
+			}
+			ScheduledExecutorService executor = Executors.newScheduledThreadPool(2);
+			executor.scheduleAtFixedRate(store, 0, 1, TimeUnit.MILLISECONDS);
+			executor.submit(service);
+			String host = webhook().getHost();
+
+			// Grows past the initial limit toward the workers of a healthy receiver
+			Thread.sleep(1500);
+			int healthy = service.getConcurrencyLimit(host);
+			Assert.assertTrue("healthy limit " + healthy, healthy >= 24);
+
+			// Backs off once the receiver loses most of its workers
+			workers.set(4);
+			Thread.sleep(1500);
+			int degraded = service.getConcurrencyLimit(host);
+			Assert.assertTrue("degraded limit " + degraded, degraded <= 16 && degraded < healthy / 2);
+
+			service.shutdown(1, TimeUnit.SECONDS);
+			executor.shutdownNow();
+		} finally {
+			serverLog.setLevel(level);
+		}
+	}
+
+	@Test
+	public void testConcurrencyLimiter() throws InterruptedException {
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 2, 20);
+		ConcurrencyLimiter idle = new ConcurrencyLimiter(10, 2, 20);
+		// Flat latency at full use grows the limit, a window at a time
+		for (int i = 0; i < 20; i++) {
+			window(limiter, 1, false, limiter.getLimit());
+			window(idle, 1, false, 1);
+		}
+		Assert.assertEquals(20, limiter.getLimit());
+		// An idle host does not
+		Assert.assertEquals(10, idle.getLimit());
+		// Rising latency shrinks it until the growth term balances the gradient
+		for (int i = 0; i < 20; i++) {
+			window(limiter, 10, false, limiter.getLimit());
+		}
+		Assert.assertEquals(4, limiter.getLimit());
+		// Overload cuts it to the floor
+		for (int i = 0; i < 20; i++) {
+			window(limiter, 10, true, limiter.getLimit());
+		}
+		Assert.assertEquals(2, limiter.getLimit());
+		Assert.assertEquals(5, ConcurrencyLimiter.fixed(5).getLimit());
+	}
+
+	private static void window(ConcurrencyLimiter limiter, long latency, boolean overloaded, int inFlight) throws InterruptedException {
+		Thread.sleep(latency + 1);
+		for (int i = 0; i < 4; i++) {
+			limiter.record(latency, overloaded, inFlight);
+		}
+	}
 }
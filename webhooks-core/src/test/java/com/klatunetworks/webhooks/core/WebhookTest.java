@@ -1,16 +1,44 @@
 package com.klatunetworks.webhooks.core;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.codahale.metrics.MetricRegistry;
 import com.klatunetworks.webhooks.support.TestCallback;
 import com.klatunetworks.webhooks.support.TestWithMockServer;
 import com.squareup.okhttp.OkHttpClient;
 import com.squareup.okhttp.Request;
+import com.squareup.okhttp.RequestBody;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
 import com.squareup.okhttp.mockwebserver.MockResponse;
 import com.squareup.okhttp.mockwebserver.RecordedRequest;
+import com.squareup.okhttp.mockwebserver.SocketPolicy;
+
+import okio.Buffer;
+import okio.ByteString;
 
 public class WebhookTest extends TestWithMockServer {
 
@@ -24,6 +52,16 @@ public class WebhookTest extends TestWithMockServer {
 		Assert.assertEquals(getServerUrl(), request.urlString());
 		Assert.assertEquals(2l, request.body().contentLength());
 		Assert.assertEquals(Webhook.JSON, request.body().contentType());
+		Assert.assertEquals(hook.getId(), request.header(Webhook.ID_HEADER));
+	}
+
+	@Test
+	public void testIdIsRandomUuid() {
+		for (int i = 0; i < 100; i++) {
+			UUID id = UUID.fromString(new Webhook(getServerUrl(), "{}").getId());
+			Assert.assertEquals(4, id.version());
+			Assert.assertEquals(2, id.variant());
+		}
 	}
 
 	@Test(timeout = 1000)
@@ -78,4 +116,521 @@ public class WebhookTest extends TestWithMockServer {
 		Assert.assertEquals(7l, request.getBodySize());
 		Assert.assertEquals("Test", request.getHeader("Test"));
 	}
+
+	@Test(timeout = 1000)
+	public void testBodyPolicyCapture() throws IOException {
+		server.enqueue(new MockResponse().setResponseCode(200).setBody("0123456789"));
+		TestCallback callback = new TestCallback();
+		new WebhookService(new OkHttpClient(), null, ResponseBodyPolicy.capture(4, 1, TimeUnit.SECONDS)).submit(webhook(), callback);
+		Assert.assertEquals("0123", callback.take().getBody().get());
+	}
+
+	@Test(timeout = 2000)
+	public void testBodyPolicyCaptureBoundaries() throws IOException {
+		// The euro sign takes bytes 4 to 6, so a 5 byte capture stops before it
+		server.enqueue(new MockResponse().setResponseCode(200).setBody("0123\u20ac56789"));
+		server.enqueue(new MockResponse().setResponseCode(200).setBody("0123456789").throttleBody(1, 100, TimeUnit.MILLISECONDS));
+		TestCallback callback = new TestCallback();
+		WebhookService service = new WebhookService(new OkHttpClient(), null, ResponseBodyPolicy.capture(5, 250, TimeUnit.MILLISECONDS));
+		service.submit(webhook(), callback);
+		Assert.assertEquals("0123", callback.take().getBody().get());
+
+		// A dripped body misses the deadline, the bytes which arrived are kept with the error
+		service.submit(webhook(), callback);
+		WebhookResult result = callback.take();
+		Assert.assertTrue(result.isSuccessful());
+		Assert.assertTrue(result.hasError());
+		Assert.assertTrue(result.getBody().get().length() > 0 && result.getBody().get().length() < 5);
+	}
+
+	@Test(timeout = 1000)
+	public void testBodyPolicyDiscard() throws IOException {
+		server.enqueue(new MockResponse().setResponseCode(200).setBody("0123456789"));
+		TestCallback callback = new TestCallback();
+		new WebhookService(new OkHttpClient(), null, ResponseBodyPolicy.discard()).submit(webhook(), callback);
+		WebhookResult result = callback.take();
+		Assert.assertTrue(result.isSuccessful());
+		Assert.assertFalse(result.getBody().isPresent());
+	}
+
+	@Test(timeout = 2000)
+	public void testBodyPolicyStreamDeadline() throws IOException {
+		server.enqueue(new MockResponse().setResponseCode(200).setBody("0123456789").throttleBody(1, 100, TimeUnit.MILLISECONDS));
+		TestCallback callback = new TestCallback();
+		StringBuilder streamed = new StringBuilder();
+		ResponseBodyPolicy policy = ResponseBodyPolicy.stream((webhook, source) -> {
+			while (!source.exhausted()) {
+				streamed.append(source.readUtf8(1));
+			}
+		}, 250, TimeUnit.MILLISECONDS);
+		new WebhookService(new OkHttpClient(), null, policy).submit(webhook(), callback);
+
+		// the dripped body misses the deadline
+		WebhookResult result = callback.take();
+		Assert.assertTrue(result.hasError());
+		Assert.assertFalse(result.getBody().isPresent());
+		Assert.assertTrue(streamed.length() < 10);
+	}
+
+	@Test
+	public void testPayloadIsEncodedOnce() {
+		Webhook hook = new Webhook(getServerUrl(), "{}");
+		Assert.assertSame(hook.toBuilder().build().body(), hook.toBuilder().build().body());
+		Assert.assertEquals(ByteString.encodeUtf8("{}"), hook.getPayload());
+	}
+
+	@Test(timeout = 1000)
+	public void testFanOut() throws InterruptedException {
+		ByteString payload = ByteString.encodeUtf8("{\"event\":1}");
+		List<String> urls = Arrays.asList(server.getUrl("/a").toString(), server.getUrl("/b").toString(), server.getUrl("/c").toString());
+		for (int i = 0; i < urls.size(); i++) {
+			server.enqueue(new MockResponse().setResponseCode(200));
+		}
+
+		TestCallback callback = new TestCallback();
+		new WebhookService(new OkHttpClient()).submit(payload, urls, callback);
+		for (int i = 0; i < urls.size(); i++) {
+			Assert.assertSame(payload, callback.take().getWebhook().getPayload());
+			Assert.assertEquals("{\"event\":1}", server.takeRequest().getBody().readUtf8());
+		}
+	}
+
+	@Test(timeout = 1000)
+	public void testMetrics() throws IOException {
+		server.enqueue(new MockResponse().setResponseCode(200));
+		server.enqueue(new MockResponse().setResponseCode(500));
+		MetricRegistry metrics = new MetricRegistry();
+		TestCallback callback = new TestCallback();
+		WebhookService service = new WebhookService(new OkHttpClient(), metrics);
+		service.submit(webhook(), callback);
+		callback.take();
+		service.submit(webhook(), callback);
+		callback.take();
+
+		Assert.assertEquals(2, metrics.meter("webhook.complete").getCount());
+		Assert.assertEquals(1, metrics.meter("webhook.complete.success").getCount());
+		Assert.assertEquals(1, metrics.meter("webhook.complete.error").getCount());
+		for (String timer : Arrays.asList("webhook.latency", "webhook.queued", "webhook.connect", "webhook.ttfb")) {
+			Assert.assertEquals(timer, 2, metrics.timer(timer).getCount());
+		}
+		Assert.assertTrue(metrics.timer("webhook.latency").getSnapshot().getMin() >= metrics.timer("webhook.ttfb").getSnapshot().getMin());
+		Assert.assertEquals(1, metrics.meter("webhook.endpoints.other.2xx").getCount());
+		Assert.assertEquals(1, metrics.meter("webhook.endpoints.other.5xx").getCount());
+	}
+
+	@Test
+	public void testEndpointMetricCardinality() {
+		MetricRegistry metrics = new MetricRegistry();
+		HostSketch sketch = new HostSketch(metrics, 2);
+		for (int i = 0; i < 10000; i++) {
+			String host = i % 4 == 0 ? "a.com" : i % 4 == 1 ? "b.com" : "h" + i + ".com";
+			WebhookResult result = new WebhookResult(new Webhook("http://" + host + "/", "{}"));
+			result.setError(new IOException());
+			sketch.offer(host).record(result, 1000);
+		}
+
+		// 2 tracked hosts and other, 6 metrics each
+		Assert.assertEquals(18, metrics.getMetrics().size());
+		Assert.assertTrue(metrics.meter("webhook.endpoint.a.com.error").getCount() > 2000);
+		Assert.assertTrue(metrics.meter("webhook.endpoint.b.com.error").getCount() > 2000);
+		Assert.assertEquals(10000, metrics.getMeters().values().stream().mapToLong((m) -> m.getCount()).sum());
+	}
+
+	@Test
+	public void testEndpointMetricNames() {
+		MetricRegistry metrics = new MetricRegistry();
+		HostSketch sketch = new HostSketch(metrics, 2);
+		WebhookResult result = new WebhookResult(new Webhook("http://example.com/", "{}"));
+		result.setError(new IOException());
+		for (int i = 0; i < 30; i++) {
+			sketch.offer("other").record(result, 1000);
+			if (i < 20) {
+				sketch.offer("example.com").record(result, 1000);
+			}
+		}
+		Assert.assertEquals(30 - 16 + 1, metrics.meter("webhook.endpoint.other.error").getCount());
+		// Until promoted, both hosts were counted under the overflow bucket
+		Assert.assertEquals(15 + 15, metrics.meter("webhook.endpoints.other.error").getCount());
+
+		// Demoting example.com keeps the metrics of example.com.au
+		for (int i = 0; i < 40; i++) {
+			sketch.offer("example.com.au").record(result, 1000);
+		}
+		Assert.assertEquals(40 - 21 + 1, metrics.meter("webhook.endpoint.example.com.au.error").getCount());
+		Assert.assertFalse(metrics.getMeters().containsKey("webhook.endpoint.example.com.error"));
+		Assert.assertTrue(metrics.getMeters().containsKey("webhook.endpoint.other.error"));
+	}
+
+	@Test(timeout = 2000)
+	public void testBatching() throws Exception {
+		server.enqueue(new MockResponse().setResponseCode(200));
+		server.enqueue(new MockResponse().setResponseCode(500));
+		TestCallback callback = new TestCallback();
+		try (WebhookBatcher batcher = new WebhookService(new OkHttpClient()).batched(3, 1024, 1, TimeUnit.HOURS)) {
+			for (int i = 0; i < 4; i++) {
+				batcher.submit(new Webhook(getServerUrl(), "{\"n\":" + i + "}"), callback);
+			}
+			Assert.assertEquals("[{\"n\":0},{\"n\":1},{\"n\":2}]", server.takeRequest().getBody().readUtf8());
+			for (int i = 0; i < 3; i++) {
+				WebhookResult result = callback.take();
+				Assert.assertTrue(result.isSuccessful());
+				Assert.assertEquals("{\"n\":" + i + "}", result.getWebhook().getJson());
+			}
+			Assert.assertEquals(1, batcher.getPending());
+		}
+		Assert.assertEquals("[{\"n\":3}]", server.takeRequest().getBody().readUtf8());
+		Assert.assertEquals(500, callback.take().getResponse().get().code());
+	}
+
+	@Test(timeout = 2000)
+	public void testBatchLinger() throws Exception {
+		server.enqueue(new MockResponse().setResponseCode(200));
+		TestCallback callback = new TestCallback();
+		WebhookBatcher batcher = new WebhookBatcher(new WebhookService(new OkHttpClient()), 100, 1024, 20, TimeUnit.MILLISECONDS);
+		batcher.submit(webhook(), callback);
+		batcher.submit(webhook(), callback);
+		Assert.assertEquals("[['json'],['json']]", server.takeRequest().getBody().readUtf8());
+		callback.take();
+		callback.take();
+		batcher.close();
+	}
+
+	@Test(timeout = 2000)
+	public void testBatchKeysAndClose() throws Exception {
+		server.enqueue(new MockResponse().setResponseCode(200));
+		TestCallback callback = new TestCallback();
+		WebhookBatcher batcher = new WebhookBatcher(new WebhookService(new OkHttpClient()), 100, 1024, 1, TimeUnit.HOURS);
+		Webhook first = webhook();
+		first.setHeader("X-Tenant", "a");
+		batcher.submit(first, callback);
+
+		// Changing the headers of a waiting webhook does not move its batch
+		first.getHeaders().put("X-Tenant", "b");
+		Webhook second = webhook();
+		second.setHeader("X-Tenant", "a");
+		batcher.submit(second, callback);
+		Assert.assertEquals(2, batcher.getPending());
+
+		batcher.close();
+		RecordedRequest request = server.takeRequest();
+		Assert.assertEquals("[['json'],['json']]", request.getBody().readUtf8());
+		Assert.assertEquals("a", request.getHeader("X-Tenant"));
+		callback.take();
+		callback.take();
+
+		batcher.submit(webhook(), callback);
+		Assert.assertTrue(callback.take().getError().get() instanceof RejectedExecutionException);
+	}
+
+	@Test(timeout = 5000)
+	public void testSubmitAsync() throws Exception {
+		server.enqueue(new MockResponse().setResponseCode(200));
+		server.enqueue(new MockResponse().setResponseCode(500));
+		WebhookService service = new WebhookService(new OkHttpClient());
+		Assert.assertTrue(service.submitAsync(webhook()).get().isSuccessful());
+		List<WebhookResult> results = service.submitAll(Arrays.asList(webhook())).get();
+		Assert.assertEquals(1, results.size());
+		Assert.assertEquals(500, results.get(0).getResponse().get().code());
+	}
+
+	@Test(timeout = 5000)
+	public void testSlowCompletionsDoNotBlockDispatcher() throws Exception {
+		// OkHttp runs at most 5 calls per host, and a call holds its slot until its callback returns
+		int count = 15;
+		for (int i = 0; i < count; i++) {
+			server.enqueue(new MockResponse().setResponseCode(200));
+		}
+		ExecutorService executor = Executors.newCachedThreadPool();
+		WebhookService service = new WebhookService(new OkHttpClient());
+		List<CompletableFuture<WebhookResult>> futures = new ArrayList<CompletableFuture<WebhookResult>>();
+		long start = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			futures.add(service.submitAsync(webhook(), executor).thenApply((result) -> {
+				try {
+					Thread.sleep(500);
+				} catch (InterruptedException e) {
+				}
+				return result;
+			}));
+		}
+		for (int i = 0; i < count; i++) {
+			server.takeRequest();
+		}
+		Assert.assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+		Assert.assertEquals(count, WebhookServiceContract.allOf(futures).get().size());
+		executor.shutdown();
+	}
+
+	@Test(timeout = 5000)
+	public void testBlockingService() throws Exception {
+		server.setDispatcher(new Dispatcher() {
+			@Override
+			public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+				Thread.sleep(200);
+				return new MockResponse().setResponseCode(200);
+			}
+		});
+
+		// The OkHttp dispatcher would run these 5 at a time per host
+		int count = 30;
+		List<Webhook> webhooks = new ArrayList<Webhook>();
+		for (int i = 0; i < count; i++) {
+			webhooks.add(webhook());
+		}
+		long start = System.nanoTime();
+		try (BlockingWebhookService service = new BlockingWebhookService(new OkHttpClient(), count)) {
+			List<WebhookResult> results = service.submitAll(webhooks).get();
+			Assert.assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(800));
+			for (WebhookResult result : results) {
+				Assert.assertTrue(result.isSuccessful());
+			}
+		}
+	}
+
+	@Test(timeout = 2000)
+	public void testBlockingServiceReportsRuntimeFailures() throws Exception {
+		OkHttpClient client = new OkHttpClient();
+		client.interceptors().add((chain) -> {
+			throw new IllegalStateException("broken interceptor");
+		});
+		try (BlockingWebhookService service = new BlockingWebhookService(client, 1)) {
+			WebhookResult result = service.submitAsync(webhook()).get();
+			Assert.assertTrue(result.getError().get().getCause() instanceof IllegalStateException);
+			// The slot is freed once the task ends, just after the result
+			while (service.getInFlight() > 0) {
+				Thread.sleep(1);
+			}
+		}
+
+		// A consumer which throws gets its result once
+		server.enqueue(new MockResponse().setResponseCode(200));
+		AtomicInteger calls = new AtomicInteger();
+		try (BlockingWebhookService service = new BlockingWebhookService(new OkHttpClient(), 1)) {
+			service.submit(webhook(), (result) -> {
+				calls.incrementAndGet();
+				throw new IllegalStateException("broken consumer");
+			});
+			server.takeRequest();
+			while (service.getInFlight() > 0) {
+				Thread.sleep(1);
+			}
+		}
+		Assert.assertEquals(1, calls.get());
+	}
+
+	@Test(timeout = 1000)
+	public void testSigning() throws Exception {
+		server.enqueue(new MockResponse().setResponseCode(200));
+		byte[] secret = "secret".getBytes(StandardCharsets.UTF_8);
+		WebhookSigner signer = new WebhookSigner(secret);
+		WebhookService service = new WebhookService(new OkHttpClient());
+		service.setSigners((webhook) -> signer);
+
+		Webhook webhook = new Webhook(getServerUrl(), "{\"event\":\"signed\"}");
+		TestCallback callback = new TestCallback();
+		service.submit(webhook, callback);
+		Assert.assertTrue(callback.take().isSuccessful());
+
+		RecordedRequest request = server.takeRequest();
+		String timestamp = request.getHeader(WebhookSigner.TIMESTAMP_HEADER);
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+		byte[] expected = mac.doFinal((webhook.getId() + "." + timestamp + "." + webhook.getJson()).getBytes(StandardCharsets.UTF_8));
+		Assert.assertEquals("v1," + Base64.getEncoder().encodeToString(expected), request.getHeader(WebhookSigner.SIGNATURE_HEADER));
+
+		// Signatures are made per timestamp on the calling thread's Mac, repeatedly
+		Assert.assertEquals(signer.signature(webhook, 1), signer.signature(webhook, 1));
+		Assert.assertNotEquals(signer.signature(webhook, 1), signer.signature(webhook, 2));
+	}
+
+	@Test(timeout = 1000)
+	public void testCompression() throws Exception {
+		server.enqueue(new MockResponse().setResponseCode(503));
+		server.enqueue(new MockResponse().setResponseCode(200));
+		server.enqueue(new MockResponse().setResponseCode(200));
+		AtomicInteger compressions = new AtomicInteger();
+		RequestCompression gzip = new RequestCompression(RequestCompression.GZIP, Deflater.DEFAULT_COMPRESSION, 64) {
+			@Override
+			public ByteString compress(ByteString payload) {
+				compressions.incrementAndGet();
+				return super.compress(payload);
+			}
+		};
+		WebhookService service = new WebhookService(new OkHttpClient());
+		service.setCompression((webhook) -> gzip);
+
+		StringBuilder json = new StringBuilder("[");
+		for (int i = 0; i < 100; i++) {
+			json.append(i > 0 ? "," : "").append("{\"event\":\"compressed\"}");
+		}
+		String large = json.append("]").toString();
+		TestCallback callback = new TestCallback();
+		// One at a time, so the requests arrive in order
+		Webhook webhook = new Webhook(getServerUrl(), large);
+		RequestBody body = webhook.toBuilder(gzip).build().body();
+		Assert.assertSame(body, webhook.toBuilder(gzip).build().body());
+		service.submit(webhook, callback);
+		Assert.assertFalse(callback.take().isSuccessful());
+		// The retry sends the compressed body kept on the webhook
+		service.submit(webhook, callback);
+		Assert.assertTrue(callback.take().isSuccessful());
+		Assert.assertEquals(1, compressions.get());
+		Assert.assertSame(body, webhook.toBuilder(gzip).build().body());
+		service.submit(new Webhook(getServerUrl(), "{}"), callback);
+		Assert.assertTrue(callback.take().isSuccessful());
+
+		for (int i = 0; i < 2; i++) {
+			RecordedRequest compressed = server.takeRequest();
+			Assert.assertEquals(RequestCompression.GZIP, compressed.getHeader("Content-Encoding"));
+			Assert.assertTrue(compressed.getBodySize() < large.length());
+			Buffer inflated = new Buffer();
+			inflated.readFrom(new GZIPInputStream(compressed.getBody().inputStream()));
+			Assert.assertEquals(large, inflated.readUtf8());
+		}
+
+		// Below the threshold
+		RecordedRequest plain = server.takeRequest();
+		Assert.assertNull(plain.getHeader("Content-Encoding"));
+		Assert.assertEquals("{}", plain.getBody().readUtf8());
+
+		// Opting out drops the compressed body once an attempt completes
+		gzip.setKeptForRetries(false);
+		webhook.releaseCompressed();
+		Assert.assertNotSame(body, webhook.toBuilder(gzip).build().body());
+
+		// Fan-out copies share one compression, and deflate is the zlib format
+		ByteString payload = ByteString.encodeUtf8(large);
+		Assert.assertSame(gzip.compress(payload), gzip.compress(payload));
+		RequestCompression deflate = RequestCompression.deflate();
+		Buffer zlib = new Buffer().write(deflate.compress(payload));
+		Buffer decoded = new Buffer();
+		decoded.readFrom(new InflaterInputStream(zlib.inputStream()));
+		Assert.assertEquals(payload, decoded.readByteString());
+	}
+
+	@Test
+	public void testSharedHeaders() {
+		WebhookHeaders shared = WebhookHeaders.of("Authorization", "Bearer shared", "User-Agent", "webhooks");
+		Webhook first = new Webhook(getServerUrl(), ByteString.encodeUtf8("{}"), shared);
+		Webhook second = new Webhook(getServerUrl(), ByteString.encodeUtf8("{}"), shared);
+		second.setHeader("Authorization", "Bearer override");
+		second.setHeader("X-Extra", "1");
+
+		Request request = first.toBuilder().build();
+		Assert.assertEquals("Bearer shared", request.header("Authorization"));
+		Assert.assertEquals("webhooks", request.header("User-Agent"));
+		Assert.assertEquals(first.getId(), request.header(Webhook.ID_HEADER));
+
+		// Overrides are layered on the webhook, the shared set is untouched
+		request = second.toBuilder().build();
+		Assert.assertEquals("Bearer override", request.header("Authorization"));
+		Assert.assertEquals(1, request.headers("Authorization").size());
+		Assert.assertEquals("1", request.header("X-Extra"));
+		Assert.assertEquals("webhooks", request.header("User-Agent"));
+		Assert.assertEquals("Bearer shared", shared.asMap().get("Authorization"));
+		Assert.assertEquals(3, second.getHeaders().size());
+		Assert.assertSame(shared.toHeaders(), first.getSharedHeaders().toHeaders());
+
+		// Equal sets intern to one instance
+		Map<String, String> decoded = new HashMap<String, String>(shared.asMap());
+		Assert.assertSame(WebhookHeaders.intern(decoded), WebhookHeaders.intern(new HashMap<String, String>(decoded)));
+		Assert.assertSame(WebhookHeaders.EMPTY, WebhookHeaders.intern(new HashMap<String, String>()));
+	}
+
+	@Test
+	public void testHeadersWithoutSharedSetAreMutable() {
+		Webhook webhook = new Webhook(getServerUrl(), "{}");
+		webhook.getHeaders().put("X-Test", "1");
+		Assert.assertEquals("1", webhook.toBuilder().build().header("X-Test"));
+
+		// As decoded by a store, without headers
+		webhook = new Webhook(getServerUrl(), ByteString.encodeUtf8("{}"), WebhookHeaders.EMPTY);
+		webhook.getHeaders().put("X-Test", "2");
+		Assert.assertEquals("2", webhook.toBuilder().build().header("X-Test"));
+	}
+
+	@Test(timeout = 2000)
+	public void testHedging() throws Exception {
+		// The first connection hangs until the read timeout, the hedge gets an answer
+		server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.NO_RESPONSE));
+		server.enqueue(new MockResponse().setResponseCode(200));
+		HedgePolicy policy = new HedgePolicy(0.95, 50, 50, TimeUnit.MILLISECONDS);
+		WebhookService service = new WebhookService(new OkHttpClient());
+		service.setHedging((webhook) -> policy);
+
+		Webhook webhook = webhook();
+		WebhookResult result = service.submitAsync(webhook).get();
+		Assert.assertTrue(result.isSuccessful());
+		Assert.assertTrue(result.getLatency() < 1000);
+		Assert.assertEquals(webhook.getId(), server.takeRequest().getHeader(Webhook.ID_HEADER));
+		Assert.assertEquals(webhook.getId(), server.takeRequest().getHeader(Webhook.ID_HEADER));
+		Assert.assertEquals(2, server.getRequestCount());
+
+		// Latencies of the receiver set the delay, within its bounds
+		for (int i = 0; i < 32; i++) {
+			policy.record(i < 30 ? 20 : 500);
+		}
+		Assert.assertEquals(50, policy.getDelay());
+		HedgePolicy wide = new HedgePolicy(0.95, 1, 1000, TimeUnit.MILLISECONDS);
+		for (int i = 0; i < 64; i++) {
+			wide.record(i < 60 ? 20 : 500);
+		}
+		Assert.assertEquals(500, wide.getDelay());
+	}
+
+	@Test(timeout = 10000)
+	public void testHedgeDelayHoldsUnderSlowTail() throws Exception {
+		// One request in eight takes 20 to 110ms, so the 95th percentile is in the slow tail
+		AtomicInteger requests = new AtomicInteger();
+		server.setDispatcher(new Dispatcher() {
+			@Override
+			public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+				int n = requests.incrementAndGet();
+				if (n % 8 == 0) {
+					Thread.sleep(20 + (n / 8 % 10) * 10);
+				}
+				return new MockResponse().setResponseCode(200);
+			}
+		});
+		HedgePolicy policy = new HedgePolicy(0.95, 1, 1000, TimeUnit.MILLISECONDS);
+		WebhookService service = new WebhookService(new OkHttpClient());
+		service.setHedging((webhook) -> policy);
+
+		// Hedges which beat a slow first attempt still count its latency, so the delay does not fall to the fast requests
+		for (int i = 0; i < 256; i++) {
+			Assert.assertTrue(service.submitAsync(webhook()).get().isSuccessful());
+		}
+		Assert.assertTrue(String.valueOf(policy.getDelay()), policy.getDelay() >= 40);
+	}
+
+	@Test(timeout = 2000)
+	public void testDeadline() throws Exception {
+		server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.NO_RESPONSE));
+		Webhook webhook = webhook();
+		webhook.setDeadline(100, TimeUnit.MILLISECONDS);
+		WebhookResult result = new WebhookService(new OkHttpClient()).submitAsync(webhook).get();
+		Assert.assertFalse(result.isSuccessful());
+		Assert.assertTrue(result.getError().get() instanceof InterruptedIOException);
+		Assert.assertTrue(result.getLatency() < 1000);
+	}
+
+	@Test(timeout = 3000)
+	public void testHedgeWaitingForAdmissionDoesNotStallDeadlines() throws Exception {
+		server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.NO_RESPONSE));
+		server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.NO_RESPONSE));
+
+		// The hedge of the hung delivery waits for the only slot
+		try (BlockingWebhookService blocking = new BlockingWebhookService(new OkHttpClient(), 1)) {
+			blocking.setHedging((webhook) -> new HedgePolicy(0.95, 10, 10, TimeUnit.MILLISECONDS));
+			blocking.submit(webhook(), (result) -> {
+			});
+			Thread.sleep(50);
+
+			Webhook webhook = webhook();
+			webhook.setDeadline(100, TimeUnit.MILLISECONDS);
+			WebhookResult result = new WebhookService(new OkHttpClient()).submitAsync(webhook).get();
+			Assert.assertTrue(result.getError().get() instanceof InterruptedIOException);
+			Assert.assertTrue(result.getLatency() < 1000);
+		}
+	}
 }